@@ -0,0 +1,74 @@
+package icejar;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * Benchmarks for converting messages between the classes of different
+ * modules.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class ClassConverterBenchmark {
+
+    // Equivalent records, as if defined separately by two modules
+    public record Point(int x, int y, String label) {}
+    public record OtherPoint(int x, int y, String label) {}
+
+    public record Line(Point start, Point end) {}
+    public record OtherLine(OtherPoint start, OtherPoint end) {}
+
+    public record Shape(String name, int[] sessions, Point[] points) {}
+    public record OtherShape(String name, int[] sessions, OtherPoint[] points) {}
+
+    private Point point;
+    private Line line;
+    private Shape shape;
+    private Point[] points;
+
+    @Setup
+    public void setup() {
+        point = new Point(1, 2, "point");
+        line = new Line(new Point(0, 0, "start"), new Point(3, 4, "end"));
+
+        points = new Point[16];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new Point(i, -i, "point " + i);
+        }
+
+        int[] sessions = new int[64];
+        for (int i = 0; i < sessions.length; i++) {
+            sessions[i] = i;
+        }
+
+        shape = new Shape("shape", sessions, points);
+    }
+
+    @Benchmark
+    public Point identicalClass() throws Exception {
+        return ClassConverter.convert(point, Point.class);
+    }
+
+    @Benchmark
+    public OtherPoint equivalentRecord() throws Exception {
+        return ClassConverter.convert(point, OtherPoint.class);
+    }
+
+    @Benchmark
+    public OtherLine nestedRecord() throws Exception {
+        return ClassConverter.convert(line, OtherLine.class);
+    }
+
+    @Benchmark
+    public OtherPoint[] recordArray() throws Exception {
+        return ClassConverter.convert(points, OtherPoint[].class);
+    }
+
+    @Benchmark
+    public OtherShape recordWithArrays() throws Exception {
+        return ClassConverter.convert(shape, OtherShape.class);
+    }
+}
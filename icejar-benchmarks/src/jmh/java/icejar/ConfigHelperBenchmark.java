@@ -0,0 +1,38 @@
+package icejar;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * Benchmarks for parsing module configuration into records.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class ConfigHelperBenchmark {
+
+    public record Config(
+            String serverName, Long maxUsers, Boolean welcomeEnabled,
+            String welcomeText, Double volume) {}
+
+    private Map<String, Object> config;
+
+    @Setup
+    public void setup() {
+        config = new HashMap<>();
+        config.put("server_name", "benchmark");
+        config.put("max_users", 100L);
+        config.put("welcome_enabled", true);
+        config.put("welcome_text", "Welcome!");
+        config.put("volume", 0.5);
+    }
+
+    @Benchmark
+    public Config parseConfig() throws Exception {
+        return ConfigHelper.parseConfig(config, Config.class);
+    }
+}
@@ -0,0 +1,110 @@
+package icejar;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * Benchmarks for sending messages between modules.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class MessagePasserBenchmark {
+
+    private static final String SERVER_NAME = "benchmark_server";
+    private static final String MODULE_NAME = "benchmark_module";
+
+    public record Message(int session, String text) {}
+    public record OtherMessage(int session, String text) {}
+
+    private MessagePassing.Sender<Message> sameClassSender;
+    private MessagePassing.Sender<Message> otherClassSender;
+    private MessagePassing.Sender<Message> batchSender;
+    private MessagePassing.Sender<Message> missingSender;
+
+    private Message message;
+    private List<Message> batch;
+
+    // Written by the handlers so that delivering a message is not optimized
+    // away.
+    private Object lastReceived;
+
+    @Setup
+    public void setup() {
+        MessagePassing.Coordinator coordinator =
+            MessagePasser.createCoordinator(SERVER_NAME, MODULE_NAME);
+
+        coordinator.getReceiver("same", Message.class, m -> lastReceived = m);
+        coordinator.getReceiver("other", OtherMessage.class, m -> lastReceived = m);
+
+        MessagePassing.Receiver<OtherMessage> batchReceiver =
+            coordinator.getReceiver("batch", OtherMessage.class);
+        batchReceiver.setBatchHandler(m -> lastReceived = m);
+
+        sameClassSender = coordinator.getSender(MODULE_NAME, "same");
+        otherClassSender = coordinator.getSender(MODULE_NAME, "other");
+        batchSender = coordinator.getSender(MODULE_NAME, "batch");
+        missingSender = coordinator.getSender(MODULE_NAME, "missing");
+
+        message = new Message(1, "message");
+
+        batch = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            batch.add(new Message(i, "message " + i));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        MessagePasser.removeServer(SERVER_NAME);
+    }
+
+    @Benchmark
+    public boolean sendSameClass() {
+        return sameClassSender.send(message);
+    }
+
+    @Benchmark
+    public boolean sendEquivalentRecord() {
+        return otherClassSender.send(message);
+    }
+
+    @Benchmark
+    public boolean sendWithoutReceiver() {
+        return missingSender.send(message);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(64)
+    public int sendAllEquivalentRecords() {
+        return batchSender.sendAll(batch);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(64)
+    public int sendEachEquivalentRecord() {
+        int sent = 0;
+        for (Message m: batch) {
+            if (otherClassSender.send(m)) {
+                sent++;
+            }
+        }
+        return sent;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean contendedSendSameClass() {
+        return sameClassSender.send(message);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean contendedSendEquivalentRecord() {
+        return otherClassSender.send(message);
+    }
+}
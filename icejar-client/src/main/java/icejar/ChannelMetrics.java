@@ -0,0 +1,68 @@
+package icejar;
+
+import java.util.concurrent.atomic.LongAdder;
+
+
+// Counters and a handler latency histogram for a single message passing
+// channel. LongAdders are used so that recording from many threads at once
+// does not contend on a single memory location.
+final class ChannelMetrics {
+
+    // Bucket `i` counts latencies of less than 2^i nanoseconds which did not
+    // fit in bucket `i - 1`.
+    private static final int LATENCY_BUCKETS = 64;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder conversionFailures = new LongAdder();
+    private final LongAdder missingReceiverDrops = new LongAdder();
+    private final LongAdder queueRejections = new LongAdder();
+    private final LongAdder handlerFailures = new LongAdder();
+    private final LongAdder[] latencyBuckets = new LongAdder[LATENCY_BUCKETS];
+
+    ChannelMetrics() {
+        for (int i = 0; i < latencyBuckets.length; i++) {
+            latencyBuckets[i] = new LongAdder();
+        }
+    }
+
+    void recordSent(int count) {
+        sent.add(count);
+    }
+
+    void recordDelivered(int count, long latencyNanos) {
+        delivered.add(count);
+
+        int bucket = Long.SIZE - Long.numberOfLeadingZeros(Math.max(latencyNanos, 0));
+        latencyBuckets[Math.min(bucket, LATENCY_BUCKETS - 1)].increment();
+    }
+
+    void recordConversionFailure(int count) {
+        conversionFailures.add(count);
+    }
+
+    void recordMissingReceiver(int count) {
+        missingReceiverDrops.add(count);
+    }
+
+    void recordQueueRejection(int count) {
+        queueRejections.add(count);
+    }
+
+    void recordHandlerFailure(int count) {
+        handlerFailures.add(count);
+    }
+
+    MessagePassing.ChannelStats snapshot(String moduleName, String channel) {
+        long[] latencies = new long[latencyBuckets.length];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = latencyBuckets[i].sum();
+        }
+
+        return new MessagePassing.ChannelStats(
+                moduleName, channel,
+                sent.sum(), delivered.sum(), conversionFailures.sum(),
+                missingReceiverDrops.sum(), queueRejections.sum(),
+                handlerFailures.sum(), latencies);
+    }
+}
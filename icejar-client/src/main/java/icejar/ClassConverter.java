@@ -1,14 +1,53 @@
 package icejar;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
 import java.lang.reflect.RecordComponent;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
 
 
 final class ClassConverter {
 
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    // Conversion plans are expensive to work out (reflection on record
+    // components, constructors, enum constants), but only depend on the pair
+    // of classes involved, so each plan is built once and re-used.
+    private static final Map<Key, Conversion> conversions = new ConcurrentHashMap<>();
+
     private ClassConverter() {}
 
+    private static record Key(Class<?> from, Class<?> to) {}
+
+    @FunctionalInterface
+    private static interface Conversion {
+        Object apply(Object obj) throws Throwable;
+    }
+
+    private static final Conversion IDENTITY = obj -> obj;
+
     @SuppressWarnings("unchecked")
     public static <C> C convert(Object obj, Class<C> cls) throws Exception {
         if (obj == null) {
@@ -18,51 +57,482 @@ final class ClassConverter {
 
         Class<?> objCls = obj.getClass();
 
+        if (objCls == cls) {
+            // Identical classes never need to be converted.
+            return (C) obj;
+        }
+
+        return (C) apply(getConversion(objCls, cls), obj);
+    }
+
+    // Convert each of the given objects. Consecutive objects of the same class
+    // share a single look-up of their conversion.
+    @SuppressWarnings("unchecked")
+    public static <C> List<C> convertAll(Collection<?> objs, Class<C> cls)
+        throws Exception
+    {
+        List<C> converted = new ArrayList<>(objs.size());
+
+        Class<?> lastObjCls = null;
+        Conversion conversion = null;
+
+        for (Object obj: objs) {
+            if (obj == null || obj.getClass() == cls) {
+                converted.add((C) obj);
+                continue;
+            }
+
+            if (obj.getClass() != lastObjCls) {
+                lastObjCls = obj.getClass();
+                conversion = getConversion(lastObjCls, cls);
+            }
+
+            converted.add((C) apply(conversion, obj));
+        }
+
+        return converted;
+    }
+
+    private static Object apply(Conversion conversion, Object obj)
+        throws Exception
+    {
+        try {
+            return conversion.apply(obj);
+        } catch (Exception | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new Exception(t);
+        }
+    }
+
+    // Drop every cached plan which refers to a class loaded by the given
+    // ClassLoader, so that the classes of unloaded modules can be collected.
+    static void invalidate(ClassLoader classLoader) {
+        if (classLoader != null) {
+            conversions.keySet().removeIf(key ->
+                    key.from().getClassLoader() == classLoader
+                    || key.to().getClassLoader() == classLoader);
+        }
+    }
+
+    private static Object convertValue(Object obj, Class<?> cls) throws Throwable {
+        if (obj == null || obj.getClass() == cls) {
+            return obj;
+        }
+
+        return getConversion(obj.getClass(), cls).apply(obj);
+    }
+
+    private static Conversion getConversion(Class<?> objCls, Class<?> cls)
+        throws Exception
+    {
+        Key key = new Key(objCls, cls);
+        Conversion conversion = conversions.get(key);
+
+        if (conversion == null) {
+            // Plans are built outside of the map so that building one never
+            // needs to recursively update the map.
+            conversion = createConversion(objCls, cls);
+            Conversion existing = conversions.putIfAbsent(key, conversion);
+            if (existing != null) {
+                conversion = existing;
+            }
+        }
+
+        return conversion;
+    }
+
+    private static Conversion createConversion(Class<?> objCls, Class<?> cls)
+        throws Exception
+    {
         if (objCls.isRecord() && cls.isRecord()) {
             // Special handling for equivalent record classes, i.e. records
             // which might be different classes, but whose members have the
             // same types so we can convert easily.
+            return createRecordConversion(objCls, cls);
+        } else if (objCls.isArray() && cls.isArray()) {
+            // Special handling for arrays
+            return createArrayConversion(objCls, cls);
+        } else if (objCls.isEnum() && cls.isEnum()) {
+            // Special handling for enums
+            return createEnumConversion(objCls, cls);
+        } else {
+            Class<?> boxedCls = MethodType.methodType(cls).wrap().returnType();
+            return obj -> boxedCls.cast(obj);
+        }
+    }
 
-            RecordComponent[] objComponents = objCls.getRecordComponents();
-            RecordComponent[] components = cls.getRecordComponents();
-            Object[] args = new Object[components.length];
+    private static Conversion createRecordConversion(
+            Class<?> objCls, Class<?> cls) throws Exception
+    {
+        RecordComponent[] objComponents = objCls.getRecordComponents();
+        RecordComponent[] components = cls.getRecordComponents();
 
-            Class<?>[] paramTypes =
-                Arrays.stream(components)
-                .map(RecordComponent::getType)
-                .toArray(Class<?>[]::new);
-            Constructor<C> constructor = cls.getDeclaredConstructor(paramTypes);
+        if (objComponents.length != components.length) {
+            String errorMsg = String.format(
+                    "%s has %d components but %s has %d",
+                    objCls, objComponents.length, cls, components.length);
+            throw new IllegalArgumentException(errorMsg);
+        }
+
+        Class<?>[] paramTypes =
+            Arrays.stream(components)
+            .map(RecordComponent::getType)
+            .toArray(Class<?>[]::new);
+        Constructor<?> constructor = cls.getDeclaredConstructor(paramTypes);
+
+        MethodHandle constructorHandle = LOOKUP.unreflectConstructor(constructor)
+            .asType(MethodType.genericMethodType(paramTypes.length))
+            .asSpreader(Object[].class, paramTypes.length);
+
+        MethodHandle[] accessors = new MethodHandle[objComponents.length];
+        Conversion[] componentConversions = new Conversion[objComponents.length];
+
+        for (int i = 0; i < objComponents.length; i++) {
+            accessors[i] = LOOKUP.unreflect(objComponents[i].getAccessor())
+                .asType(MethodType.genericMethodType(1));
+
+            Class<?> objType = objComponents[i].getType();
+            Class<?> type = paramTypes[i];
+
+            if (type.isPrimitive()) {
+                // Values are boxed by the accessor and unboxed by the
+                // constructor, so primitives need no conversion of their own.
+                componentConversions[i] = IDENTITY;
+            } else if (type.isAssignableFrom(objType)) {
+                // Collections of the same class may still hold elements which
+                // need to be converted.
+                componentConversions[i] = createGenericConversion(
+                        objComponents[i].getGenericType(),
+                        components[i].getGenericType());
+            } else {
+                // The runtime class of a component value may differ from the
+                // declared type, so nested plans are looked up per value.
+                componentConversions[i] = obj -> convertValue(obj, type);
+            }
+        }
+
+        return obj -> {
+            Object[] args = new Object[accessors.length];
 
             for (int i = 0; i < args.length; i++) {
-                args[i] = convert(
-                        objComponents[i].getAccessor().invoke(obj),
-                        paramTypes[i]);
+                args[i] = componentConversions[i].apply(
+                        (Object) accessors[i].invokeExact(obj));
             }
 
-            return constructor.newInstance(args);
-        } else if (objCls.isArray() && cls.isArray()) {
-            // Special handling for arrays
+            return (Object) constructorHandle.invokeExact(args);
+        };
+    }
+
+    private static Conversion createArrayConversion(
+            Class<?> objCls, Class<?> cls)
+    {
+        Class<?> componentType = cls.componentType();
+
+        if (objCls.componentType().isPrimitive() || componentType.isPrimitive()) {
+            // Arrays of primitives of the same type are never converted, so
+            // this is only reached when elements must be boxed or unboxed,
+            // e.g. from `int[]` to `Integer[]`.
+            return obj -> {
+                int length = Array.getLength(obj);
+                Object arr = Array.newInstance(componentType, length);
+
+                for (int i = 0; i < length; i++) {
+                    Array.set(arr, i, Array.get(obj, i));
+                }
+
+                return arr;
+            };
+        }
 
+        return obj -> {
             Object[] objArr = (Object[]) obj;
-            Object[] arr = new Object[objArr.length];
-            Class<?> componentType = objCls.componentType();
-            Class<? extends Object[]> arrCls = (Class<? extends Object[]>) cls;
+            Object[] arr = (Object[]) Array.newInstance(componentType, objArr.length);
 
             for (int i = 0; i < objArr.length; i++) {
-                arr[i] = convert(objArr[i], componentType);
+                arr[i] = convertValue(objArr[i], componentType);
             }
 
-            return cls.cast(Arrays.copyOf(arr, arr.length, arrCls));
-        } else if (objCls.isEnum() && cls.isEnum()) {
-            // Special handling for enums
+            return arr;
+        };
+    }
 
-            Enum<?> objEnum = (Enum<?>) obj;
-            @SuppressWarnings("rawtypes")
-            Class<? extends Enum> enumCls = (Class<? extends Enum>) cls;
+    // Create a conversion from values declared with one generic type to
+    // values declared with another, e.g. from `Map<String, List<A>>` to
+    // `SortedMap<String, List<B>>`. Collections and maps are copied, and the
+    // type arguments are converted in turn, but only where they differ: when
+    // nothing inside a value needs to be converted, it is passed through
+    // without being copied. `objType` may be null if it isn't known.
+    private static Conversion createGenericConversion(Type objType, Type type)
+        throws Exception
+    {
+        if (type.equals(objType)) {
+            return IDENTITY;
+        } else if (type instanceof WildcardType wildcardType) {
+            return createGenericConversion(
+                    upperBound(objType), wildcardType.getUpperBounds()[0]);
+        } else if (type instanceof Class<?> cls) {
+            // The runtime class of a value may differ from the declared type,
+            // so nested plans are looked up per value.
+            return cls == Object.class ? IDENTITY : obj -> convertValue(obj, cls);
+        } else if (type instanceof GenericArrayType arrayType) {
+            Type objComponentType =
+                objType instanceof GenericArrayType objArrayType
+                ? objArrayType.getGenericComponentType()
+                : null;
+            return createGenericArrayConversion(
+                    objComponentType, arrayType.getGenericComponentType());
+        } else if (type instanceof ParameterizedType parameterizedType) {
+            return createParameterizedConversion(objType, parameterizedType);
+        } else {
+            // Nothing is known about the values of type variables.
+            return IDENTITY;
+        }
+    }
+
+    private static Conversion createParameterizedConversion(
+            Type objType, ParameterizedType type) throws Exception
+    {
+        Class<?> rawType = rawClass(type);
+        Type[] typeArgs = type.getActualTypeArguments();
 
-            return cls.cast(Enum.valueOf(enumCls, objEnum.name()));
+        // Type arguments can only be matched up by position if both types are
+        // declared with the same class.
+        Type[] objTypeArgs = new Type[typeArgs.length];
+        if (
+                objType instanceof ParameterizedType objParameterizedType
+                && rawClass(objParameterizedType) == rawType)
+        {
+            objTypeArgs = objParameterizedType.getActualTypeArguments();
+        }
+
+        Conversion[] argConversions = new Conversion[typeArgs.length];
+        boolean isIdentity = true;
+        for (int i = 0; i < typeArgs.length; i++) {
+            argConversions[i] = createGenericConversion(objTypeArgs[i], typeArgs[i]);
+            isIdentity &= argConversions[i] == IDENTITY;
+        }
+
+        if (isIdentity) {
+            return IDENTITY;
+        } else if (Map.class.isAssignableFrom(rawType) && typeArgs.length == 2) {
+            return createMapConversion(rawType, argConversions[0], argConversions[1]);
+        } else if (Collection.class.isAssignableFrom(rawType) && typeArgs.length == 1) {
+            return createCollectionConversion(rawType, argConversions[0]);
         } else {
-            return cls.cast(obj);
+            // Passing the value through would hand out a value whose type
+            // arguments don't match its declaration.
+            String errorMsg = String.format(
+                    "Can't convert %s to %s", objType, type);
+            throw new IllegalArgumentException(errorMsg);
         }
     }
+
+    private static Conversion createMapConversion(
+            Class<?> rawType, Conversion keyConversion, Conversion valueConversion)
+        throws Exception
+    {
+        CollectionFactory factory = createCollectionFactory(
+                rawType, ClassConverter::findMapImplementation);
+
+        return obj -> {
+            Map<?, ?> objMap = (Map<?, ?>) obj;
+            @SuppressWarnings("unchecked")
+            Map<Object, Object> map = (Map<Object, Object>) factory.create(objMap.size());
+            checkOrdering(objMap, map);
+
+            for (Map.Entry<?, ?> entry: objMap.entrySet()) {
+                map.put(
+                        keyConversion.apply(entry.getKey()),
+                        valueConversion.apply(entry.getValue()));
+            }
+
+            return map;
+        };
+    }
+
+    private static Conversion createCollectionConversion(
+            Class<?> rawType, Conversion elementConversion) throws Exception
+    {
+        CollectionFactory factory = createCollectionFactory(
+                rawType, ClassConverter::findCollectionImplementation);
+
+        return obj -> {
+            Collection<?> objCollection = (Collection<?>) obj;
+            @SuppressWarnings("unchecked")
+            Collection<Object> collection =
+                (Collection<Object>) factory.create(objCollection.size());
+            checkOrdering(objCollection, collection);
+
+            for (Object element: objCollection) {
+                collection.add(elementConversion.apply(element));
+            }
+
+            return collection;
+        };
+    }
+
+    private static Conversion createGenericArrayConversion(
+            Type objComponentType, Type componentType) throws Exception
+    {
+        Conversion componentConversion =
+            createGenericConversion(objComponentType, componentType);
+        if (componentConversion == IDENTITY) {
+            return IDENTITY;
+        }
+
+        Class<?> componentCls = rawClass(componentType);
+
+        return obj -> {
+            Object[] objArr = (Object[]) obj;
+            Object[] arr = (Object[]) Array.newInstance(componentCls, objArr.length);
+
+            for (int i = 0; i < objArr.length; i++) {
+                arr[i] = componentConversion.apply(objArr[i]);
+            }
+
+            return arr;
+        };
+    }
+
+    @FunctionalInterface
+    private static interface CollectionFactory {
+        Object create(int size) throws Throwable;
+    }
+
+    // Copies declared as an interface or abstract class are made with the
+    // first standard implementation of it, so e.g. `Deque` is copied into an
+    // `ArrayDeque` and `SortedMap` into a `TreeMap`.
+    private static CollectionFactory findMapImplementation(Class<?> rawType) {
+        if (rawType.isAssignableFrom(LinkedHashMap.class)) {
+            return size -> new LinkedHashMap<>(capacity(size));
+        } else if (rawType.isAssignableFrom(TreeMap.class)) {
+            return size -> new TreeMap<>();
+        } else if (rawType.isAssignableFrom(ConcurrentHashMap.class)) {
+            return ConcurrentHashMap::new;
+        } else if (rawType.isAssignableFrom(ConcurrentSkipListMap.class)) {
+            return size -> new ConcurrentSkipListMap<>();
+        } else {
+            return null;
+        }
+    }
+
+    private static CollectionFactory findCollectionImplementation(Class<?> rawType) {
+        if (rawType.isAssignableFrom(ArrayList.class)) {
+            return ArrayList::new;
+        } else if (rawType.isAssignableFrom(LinkedHashSet.class)) {
+            return size -> new LinkedHashSet<>(capacity(size));
+        } else if (rawType.isAssignableFrom(TreeSet.class)) {
+            return size -> new TreeSet<>();
+        } else if (rawType.isAssignableFrom(ArrayDeque.class)) {
+            return ArrayDeque::new;
+        } else {
+            return null;
+        }
+    }
+
+    private static int capacity(int size) {
+        return (int) (size / 0.75f) + 1;
+    }
+
+    private static CollectionFactory createCollectionFactory(
+            Class<?> rawType, Function<Class<?>, CollectionFactory> findImplementation)
+    {
+        if (
+                rawType.isInterface()
+                || Modifier.isAbstract(rawType.getModifiers()))
+        {
+            CollectionFactory factory = findImplementation.apply(rawType);
+            if (factory != null) {
+                return factory;
+            }
+        } else {
+            // Concrete classes such as `TreeMap` or `HashSet` are copied into
+            // a new instance of the same class.
+            try {
+                MethodHandle constructor = LOOKUP.findConstructor(
+                        rawType, MethodType.methodType(void.class));
+                return size -> constructor.invoke();
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                // Fall through to the error below.
+            }
+        }
+
+        String errorMsg = String.format(
+                "Can't convert values declared as %s, since no copy of it can be created",
+                rawType.getName());
+        throw new IllegalArgumentException(errorMsg);
+    }
+
+    // Sorted copies are created with the natural ordering of their converted
+    // elements, so the ordering of a comparator can't be preserved.
+    private static void checkOrdering(Object obj, Object copy) {
+        Object comparator = null;
+        if (obj instanceof SortedMap<?, ?> sortedMap) {
+            comparator = sortedMap.comparator();
+        } else if (obj instanceof SortedSet<?> sortedSet) {
+            comparator = sortedSet.comparator();
+        }
+
+        if (
+                comparator != null
+                && (copy instanceof SortedMap || copy instanceof SortedSet))
+        {
+            String errorMsg = String.format(
+                    "Can't convert a sorted %s which uses a comparator",
+                    obj.getClass().getName());
+            throw new IllegalArgumentException(errorMsg);
+        }
+    }
+
+    private static Type upperBound(Type type) {
+        if (type instanceof WildcardType wildcardType) {
+            return wildcardType.getUpperBounds()[0];
+        }
+        return type;
+    }
+
+    private static Class<?> rawClass(Type type) {
+        if (type instanceof Class<?> cls) {
+            return cls;
+        } else if (type instanceof ParameterizedType parameterizedType) {
+            return rawClass(parameterizedType.getRawType());
+        } else if (type instanceof GenericArrayType arrayType) {
+            return rawClass(arrayType.getGenericComponentType()).arrayType();
+        } else {
+            // Type variables and wildcards
+            return Object.class;
+        }
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static Conversion createEnumConversion(
+            Class<?> objCls, Class<?> cls)
+    {
+        Enum<?>[] objConstants = (Enum<?>[]) objCls.getEnumConstants();
+        Enum<?>[] constants = new Enum<?>[objConstants.length];
+
+        for (int i = 0; i < objConstants.length; i++) {
+            try {
+                constants[i] = Enum.valueOf((Class<? extends Enum>) cls, objConstants[i].name());
+            } catch (IllegalArgumentException e) {
+                // Constants without an equivalent can't be converted, but
+                // the others still can.
+                constants[i] = null;
+            }
+        }
+
+        return obj -> {
+            Enum<?> objEnum = (Enum<?>) obj;
+            Enum<?> constant = constants[objEnum.ordinal()];
+
+            if (constant == null) {
+                String errorMsg = String.format(
+                        "No enum constant %s.%s", cls.getName(), objEnum.name());
+                throw new IllegalArgumentException(errorMsg);
+            }
+
+            return constant;
+        };
+    }
 }
@@ -1,12 +1,25 @@
 package icejar;
 
 import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Optional;
-import java.util.OptionalInt;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
@@ -17,7 +30,6 @@ import MumbleServer.*;
 
 // Ice client for a single virtual mumble server
 final class Client {
-    private static final String ICE_CONTEXT_SECRET_VAR = "secret";
     private static final String SERVER_NAME_VAR = "registerName";
 
     private final Logger logger;
@@ -25,11 +37,28 @@ final class Client {
     private static final int MIN_RECONNECT_DELAY = 1000;
     private static final int MAX_RECONNECT_DELAY = 60000;
 
-    private String[] iceArgs;
-    private String iceHost;
-    private int icePort;
+    // Runs the `setup()` methods of modules. Each Client only sets up a few
+    // modules at a time, so the pool itself isn't bounded, and a module which
+    // times out and ignores being interrupted only keeps its own thread.
+    private static final ExecutorService setupExecutor =
+        Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "icejar-module-setup");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    // The number of modules which each Client sets up at once.
+    private static final int MAX_CONCURRENT_SETUPS =
+        Math.max(4, Runtime.getRuntime().availableProcessors());
+
     private String callbackHost;
     private int callbackPort;
+    // The number of threads which run module callbacks, or 0 if they are run
+    // by Ice's dispatch thread.
+    private int callbackThreads;
+    private ExecutorService callbackExecutor;
+    private long setupTimeoutNanos;
+    private Map<String, Long> coalescingWindows = new HashMap<>();
 
     private String serverName;
     private Long serverID;
@@ -37,51 +66,112 @@ final class Client {
 
     private Map<File, Module> enabledModules = new HashMap<>();
 
-    private Communicator communicator;
+    // Modules which have been set up since the last connection was made, with
+    // their view of the adapter, the configuration they were given and the
+    // window in milliseconds within which their state changes are coalesced.
+    private final Map<File, ModuleSetup> moduleSetups = new HashMap<>();
+    private boolean isSetUp;
+
+    // Sets up modules in the background, so that neither the ClientManager
+    // nor anything holding the lock on this Client waits for them. Requests
+    // to set up modules which arrive while modules are being set up are
+    // combined into one.
+    private final ThreadPoolExecutor setupRunner;
+    private boolean isSetupRequested;
+
+    // Modules whose `setup()` method may still be running, even after timing
+    // out, and those of them which should be set up again once it returns.
+    // `setup()` is never called again while a previous call is running.
+    private final Set<Module> runningSetups =
+        Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<Module> deferredSetups =
+        Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private volatile CommunicatorPool.Lease communicatorLease;
     private ObjectAdapter adapter;
+    private ModuleAdapter clientAdapter;
     private MetaPrx meta;
     private ServerPrx server;
+    private ServerCallbackMultiplexer callbackMultiplexer;
 
     private Thread connectThread;
 
+    // Called when the set of running virtual servers changes, if this Client
+    // keeps track of them.
+    private Runnable serverListListener;
+    // Keeps the mirror of the virtual server in sync while it is restarted.
+    private BiConsumer<ServerPrx, Boolean> serverStateListener;
+
+    private static record ModuleSetup(
+            ModuleAdapter adapter, Map<String, java.lang.Object> config,
+            long coalescingWindow) {}
+
 
     Client(Logger logger) {
         this.logger = logger;
+
+        setupRunner = new ThreadPoolExecutor(
+                1, 1, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "icejar-setup-runner");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        setupRunner.allowCoreThreadTimeOut(true);
     }
 
     synchronized void reconfigure(
             String[] iceArgs, String iceHost, int icePort, String iceSecret,
             String callbackHost, int callbackPort,
+            int callbackThreads, long setupTimeout,
+            Map<String, Long> coalescingWindows,
             Map<File, Module> enabledModules, String serverName, Long serverID,
             Toml config) {
-        this.iceArgs = iceArgs;
-        this.iceHost = iceHost;
-        this.icePort = icePort;
+        // Modules can be set up again without reconnecting, unless something
+        // which affects the connection or the adapter has changed.
+        boolean needsReconnect =
+            !Objects.equals(callbackHost, this.callbackHost)
+            || callbackPort != this.callbackPort
+            || callbackThreads != this.callbackThreads
+            || !Objects.equals(serverName, this.serverName)
+            || !Objects.equals(serverID, this.serverID);
+
         this.callbackHost = callbackHost;
         this.callbackPort = callbackPort;
+        if (callbackThreads != this.callbackThreads) {
+            // Callbacks which are already queued still run on the previous
+            // threads.
+            if (callbackExecutor != null) {
+                callbackExecutor.shutdown();
+                callbackExecutor = null;
+            }
+            if (callbackThreads > 0) {
+                callbackExecutor = createCallbackExecutor(callbackThreads);
+            }
+        }
+        this.callbackThreads = callbackThreads;
+        this.setupTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(setupTimeout);
+        this.coalescingWindows = coalescingWindows;
 
         this.serverName = serverName;
         this.serverID = serverID;
         this.config = config;
 
-        // Set up the communicator
-        if (communicator == null || communicator.isShutdown()) {
-            Properties properties = Util.createProperties();
-            properties.setProperty("Ice.ImplicitContext", "Shared");
-            properties.setProperty("Ice.ThreadPool.Client.SizeMax", "1");
-            properties.setProperty("Ice.ThreadPool.Server.SizeMax", "1");
-
-            InitializationData initData = new InitializationData();
-            initData.properties = properties;
-
-            communicator = Util.initialize(initData);
+        // Get a communicator, which is shared with other Clients connecting
+        // to the same Mumble server with the same settings.
+        CommunicatorPool.Lease previousLease = null;
+        if (
+                communicatorLease == null
+                || !communicatorLease.matches(
+                    iceHost, icePort, iceArgs, iceSecret))
+        {
+            disconnect();
+            previousLease = communicatorLease;
+            communicatorLease = CommunicatorPool.acquire(
+                    iceHost, icePort, iceArgs, iceSecret);
         }
 
-        ImplicitContext iceContext = communicator.getImplicitContext();
-        iceContext.put(
-                ICE_CONTEXT_SECRET_VAR,
-                Optional.ofNullable(iceSecret).orElse(""));
-
         // Unload modules which are no longer enabled
         if (this.enabledModules != null) {
             for (File module: this.enabledModules.keySet()) {
@@ -92,7 +182,51 @@ final class Client {
         }
         this.enabledModules = enabledModules;
 
-        startReconnectThread();
+        // Disconnecting marks the Client as not set up, so this also covers
+        // a change of communicator.
+        if (needsReconnect || !isSetUp) {
+            startReconnectThread();
+        } else {
+            requestModuleSetups();
+        }
+
+        // The previous connection thread has exited by now, so the previous
+        // communicator is no longer in use by this Client.
+        if (previousLease != null) {
+            CommunicatorPool.release(previousLease);
+        }
+    }
+
+    // Callbacks for the same user session are run one at a time, so a burst
+    // of slow callbacks queues up rather than adding threads.
+    private static ExecutorService createCallbackExecutor(int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "icejar-callback-dispatch");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    // Keep track of the running virtual servers while connected, calling the
+    // given method whenever they change. Takes effect on the next connection.
+    synchronized void setServerListListener(Runnable serverListListener) {
+        this.serverListListener = serverListListener;
+    }
+
+    // Get the IDs of the running virtual servers, or null if they aren't
+    // known, e.g. because there is no connection.
+    Set<Integer> getRunningServerIDs() {
+        CommunicatorPool.Lease communicatorLease = this.communicatorLease;
+        if (communicatorLease == null) {
+            return null;
+        }
+
+        return communicatorLease.getServerDirectory().getRunningServerIDs();
     }
 
     boolean hasModuleFile(File moduleFile) {
@@ -158,48 +292,131 @@ final class Client {
     }
 
     private void attemptConnection() throws java.lang.Exception {
-        String proxyString = String.format("Meta:default -h %s -p %d ", iceHost, icePort);
-        proxyString = proxyString + String.join(" ", iceArgs);
-        meta = MetaPrx.checkedCast(communicator.stringToProxy(proxyString));
-
-        // NOTE: Mumble re-named its Ice module from "Murmur" to "MumbleServer"
-        // If you try to connect to a Mumble server which was built against the
-        // old Ice module with a build of icejar which uses the new module or
-        // vice-versa, the call to `MetaPrx.checkedCast` will return `null`.
+        meta = communicatorLease.getMeta();
 
+        // The adapter is shared with other Clients which use the same
+        // communicator and callback endpoints. Servants of this Client are
+        // added through views of it, so they can be removed on their own.
         String adapterString = String.format("tcp -h %s", callbackHost);
         if (callbackPort >= 0) {
             adapterString += String.format(" -p %d", callbackPort);
         }
-        adapter = communicator.createObjectAdapterWithEndpoints("Callback.Client", adapterString);
-        adapter.activate();
-
-        // Set Active Connection Management (ACM) parameters
-        meta.ice_getConnection().setACM(
-                OptionalInt.of(120),
-                Optional.of(ACMClose.CloseOnIdle),
-                Optional.of(ACMHeartbeat.HeartbeatOnIdle));
+        adapter = communicatorLease.acquireAdapter(adapterString);
+        clientAdapter = new ModuleAdapter(adapter);
 
         // Try to reconnect if the remote mumble server drops the connection.
         setAutoReconnectEnabled(true);
 
+        // Keep the cache of server names and running servers up to date
+        // while connected. The cache is shared by every Client of the
+        // communicator, and only registered once per connection.
+        ServerDirectory serverDirectory = communicatorLease.getServerDirectory();
+        try {
+            communicatorLease.registerServerDirectory().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw e;
+        } catch (java.lang.Exception e) {
+            logger.log(Level.FINE, "Adding meta callback threw: " + e);
+        }
+
+        if (serverListListener != null) {
+            serverDirectory.addListener(serverListListener);
+            serverDirectory.loadRunningServers(meta);
+        }
+
         obtainServerPrx();
 
+        // Modules share a single callback registration with the server.
+        if (server != null) {
+            callbackMultiplexer = new ServerCallbackMultiplexer(
+                    logger, adapter, clientAdapter.getView(), server);
+
+            // The mirror receives callbacks before it is loaded, so that no
+            // change is missed, and is loaded before modules are set up.
+            ServerState serverState = new ServerState(server);
+            callbackMultiplexer.addListener(serverState.getUpdater());
+            serverState.load().get();
+            ServerState.register(callbackMultiplexer.getServer(), serverState);
+
+            serverStateListener = resyncOnRestart(server, callbackMultiplexer, serverState);
+            serverDirectory.addServerListener(serverStateListener);
+        }
+
         logger.info("Connected.");
     }
 
+    // The Mumble server drops the callbacks of a virtual server when it is
+    // stopped, so the mirror is stale until the virtual server has been
+    // started again, the multiplexer has been registered again and the mirror
+    // has been reloaded. Until then, helpers fall back to requests.
+    private BiConsumer<ServerPrx, Boolean> resyncOnRestart(
+            ServerPrx server, ServerCallbackMultiplexer callbackMultiplexer,
+            ServerState serverState)
+    {
+        Identity identity = server.ice_getIdentity();
+
+        return (changedServer, isRunning) -> {
+            if (!identity.equals(changedServer.ice_getIdentity())) {
+                return;
+            }
+
+            serverState.markStale();
+            if (isRunning) {
+                callbackMultiplexer.reregister()
+                    .thenCompose(v -> serverState.load())
+                    .whenComplete((v, e) -> {
+                        if (e != null) {
+                            logger.log(Level.WARNING, "Reloading server state threw:", e);
+                        }
+                    });
+            }
+        };
+    }
+
     private void disconnect() {
         // When we explicitly disconnect, we don't want to trigger an automatic
         // reconnect attempt.
         setAutoReconnectEnabled(false);
+
+        // The connection itself may be shared with other Clients, so it is
+        // only closed once the communicator is released by every Client.
         if (meta != null) {
-            meta.ice_getConnection().close(ConnectionClose.Gracefully);
             meta = null;
             logger.info("Disconnected.");
         }
 
+        isSetUp = false;
+
+        if (communicatorLease != null && serverListListener != null) {
+            communicatorLease.getServerDirectory().removeListener(serverListListener);
+        }
+
+        if (communicatorLease != null && serverStateListener != null) {
+            communicatorLease.getServerDirectory().removeServerListener(serverStateListener);
+        }
+        serverStateListener = null;
+
+        // Other Clients may still be using the adapter, so only the servants
+        // of this Client are removed from it.
+        for (ModuleSetup moduleSetup: moduleSetups.values()) {
+            moduleSetup.adapter().close();
+        }
+        moduleSetups.clear();
+
+        if (callbackMultiplexer != null) {
+            ServerState.register(callbackMultiplexer.getServer(), null);
+            callbackMultiplexer.unregister();
+            callbackMultiplexer = null;
+        }
+
+        if (clientAdapter != null) {
+            clientAdapter.close();
+            clientAdapter = null;
+        }
+
         if (adapter != null) {
-            adapter.destroy();
+            communicatorLease.releaseAdapter();
             adapter = null;
         }
     }
@@ -220,12 +437,8 @@ final class Client {
             }
             this.server = server;
         } else if (serverName != null) {
-            for (ServerPrx server: meta.getAllServers()) {
-                if (serverName.equals(server.getConf(SERVER_NAME_VAR))) {
-                    this.server = server;
-                    break;
-                }
-            }
+            this.server = communicatorLease.getServerDirectory()
+                .findServer(meta, serverName);
         } else {
             this.server = null;
         }
@@ -242,7 +455,13 @@ final class Client {
             enabledModules.put(changedModuleFile, changedModule);
         }
 
-        startReconnectThread();
+        // Only the reloaded modules need to be set up, unless there is no
+        // connection yet.
+        if (isSetUp) {
+            requestModuleSetups();
+        } else {
+            startReconnectThread();
+        }
     }
 
     private void unloadModule(File moduleFile) {
@@ -256,39 +475,329 @@ final class Client {
                 }
             }
 
+            // Remove the callbacks of the module, which would otherwise
+            // still be called after it was unloaded.
+            ModuleSetup moduleSetup = moduleSetups.remove(moduleFile);
+            if (moduleSetup != null) {
+                moduleSetup.adapter().close();
+            }
+
             enabledModules.put(moduleFile, null);
         }
     }
 
     private synchronized void setup() {
-        for (Map.Entry<File, Module> moduleEntry: enabledModules.entrySet()) {
-            File moduleFile = moduleEntry.getKey();
-            String moduleFileName = moduleFile.getName();
-            String moduleName = moduleFileName;
+        moduleSetups.clear();
+        isSetUp = true;
+        requestModuleSetups();
+    }
+
+    // Must be called while synchronized on this Client.
+    private void requestModuleSetups() {
+        if (!isSetupRequested && !setupRunner.isShutdown()) {
+            isSetupRequested = true;
+            setupRunner.execute(this::runModuleSetups);
+        }
+    }
+
+    // Choose the modules to set up while holding the lock, but set them up
+    // without it, so that the Client can be reconfigured in the meantime.
+    private void runModuleSetups() {
+        List<PendingSetup> pendingSetups;
 
-            int moduleNameEndIndex = moduleFileName.lastIndexOf('.');
-            if (moduleNameEndIndex != -1) {
-                moduleName = moduleFileName.substring(0, moduleNameEndIndex);
+        synchronized (this) {
+            isSetupRequested = false;
+            if (!isSetUp) {
+                // Modules are set up again once a connection has been made.
+                return;
             }
 
+            pendingSetups = prepareModuleSetups();
+        }
+
+        if (!pendingSetups.isEmpty()) {
+            awaitModuleSetups(pendingSetups);
+        }
+    }
+
+    // Prepare to set up each enabled module which hasn't been set up since the
+    // last connection was made, or whose configuration has changed since it
+    // was. Must be called while synchronized on this Client.
+    private List<PendingSetup> prepareModuleSetups() {
+        List<PendingSetup> pendingSetups = new ArrayList<>();
+
+        for (Map.Entry<File, Module> moduleEntry: enabledModules.entrySet()) {
+            File moduleFile = moduleEntry.getKey();
             Module module = moduleEntry.getValue();
 
             if (module != null) {
+                Map<String, java.lang.Object> moduleConfig;
                 try {
-                    Toml moduleTable = config.getTable(moduleName);
-                    Map<String, java.lang.Object> moduleConfig;
-                    if (moduleTable != null) {
-                        moduleConfig = moduleTable.toMap();
-                    } else {
-                        moduleConfig = new HashMap<>();
+                    moduleConfig = getModuleConfig(moduleFile);
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Reading configuration for `Module` from `" + moduleFile + "` threw: " + e);
+                    continue;
+                }
+
+                long coalescingWindow = coalescingWindows.getOrDefault(
+                        getModuleName(moduleFile), 0L);
+
+                ModuleSetup moduleSetup = moduleSetups.get(moduleFile);
+                if (moduleSetup != null) {
+                    if (
+                            moduleSetup.config().equals(moduleConfig)
+                            && moduleSetup.coalescingWindow() == coalescingWindow)
+                    {
+                        continue;
                     }
+                }
+
+                if (runningSetups.contains(module)) {
+                    deferredSetups.add(module);
+                    logger.fine(String.format(
+                                "Setting up `%s` once its previous call to `setup()` has returned",
+                                moduleFile));
+                    continue;
+                }
 
+                if (moduleSetup != null) {
+                    // Callbacks registered by the previous setup would
+                    // otherwise be registered twice.
+                    moduleSetups.remove(moduleFile);
+                    moduleSetup.adapter().close();
+                }
 
-                    module.setup(moduleConfig, meta, adapter, server);
-                } catch (java.lang.Exception e) {
-                    logger.log(Level.WARNING, "Call to `setup()` for `Module` from `" + moduleFile + "` threw: " + e);
+                pendingSetups.add(prepareModuleSetup(
+                        moduleFile, module, moduleConfig, coalescingWindow));
+            }
+        }
+
+        return pendingSetups;
+    }
+
+    private PendingSetup prepareModuleSetup(
+            File moduleFile, Module module,
+            Map<String, java.lang.Object> moduleConfig, long coalescingWindow)
+    {
+        ModuleAdapter moduleAdapter = new ModuleAdapter(adapter);
+        if (callbackExecutor != null) {
+            CallbackDispatch.setExecutor(moduleAdapter.getView(), callbackExecutor);
+        }
+        CallbackDispatch.setCoalescingWindow(
+                moduleAdapter.getView(),
+                TimeUnit.MILLISECONDS.toNanos(coalescingWindow));
+
+        ModuleSetup moduleSetup = new ModuleSetup(
+                moduleAdapter, moduleConfig, coalescingWindow);
+        moduleSetups.put(moduleFile, moduleSetup);
+        runningSetups.add(module);
+
+        ServerPrx server = callbackMultiplexer != null
+            ? callbackMultiplexer.getServer()
+            : null;
+
+        return new PendingSetup(moduleFile, module, moduleSetup, meta, server);
+    }
+
+    // Modules are set up concurrently, and a module which takes longer than
+    // the setup timeout is marked as failed instead of holding up the others.
+    // Each module's timeout starts when its `setup()` method is called, not
+    // while it waits for one of the Client's other modules.
+    private void awaitModuleSetups(List<PendingSetup> pendingSetups) {
+        BlockingQueue<PendingSetup> finishedSetups = new LinkedBlockingQueue<>();
+        Deque<PendingSetup> queuedSetups = new ArrayDeque<>(pendingSetups);
+        List<PendingSetup> startedSetups = new ArrayList<>();
+        List<String> report = new ArrayList<>();
+
+        try {
+            while (!queuedSetups.isEmpty() || !startedSetups.isEmpty()) {
+                while (
+                        startedSetups.size() < MAX_CONCURRENT_SETUPS
+                        && !queuedSetups.isEmpty())
+                {
+                    PendingSetup pendingSetup = queuedSetups.remove();
+                    pendingSetup.start(finishedSetups);
+                    startedSetups.add(pendingSetup);
+                }
+
+                // Wait until a module has been set up or the earliest timeout.
+                long now = System.nanoTime();
+                long waitTime = setupTimeoutNanos;
+                for (PendingSetup pendingSetup: startedSetups) {
+                    waitTime = Math.min(
+                            waitTime, pendingSetup.getDeadline(setupTimeoutNanos) - now);
+                }
+
+                PendingSetup finishedSetup = finishedSetups.poll(
+                        Math.max(waitTime, 0), TimeUnit.NANOSECONDS);
+                if (finishedSetup != null) {
+                    if (startedSetups.remove(finishedSetup)) {
+                        report.add(finishedSetup.describe());
+                    }
+                    continue;
+                }
+
+                now = System.nanoTime();
+                Iterator<PendingSetup> iterator = startedSetups.iterator();
+                while (iterator.hasNext()) {
+                    PendingSetup pendingSetup = iterator.next();
+                    if (
+                            !pendingSetup.isFinished()
+                            && now - pendingSetup.getDeadline(setupTimeoutNanos) >= 0)
+                    {
+                        iterator.remove();
+                        timeOut(pendingSetup);
+                        report.add(String.format(
+                                    "`%s` (failed)", pendingSetup.moduleFile.getName()));
+                    }
                 }
             }
+        } catch (InterruptedException e) {
+            // The Client is being cleaned up, so no module needs to be set up
+            // any more.
+            for (PendingSetup pendingSetup: startedSetups) {
+                pendingSetup.cancel();
+            }
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        logger.info("Set up modules: " + String.join(", ", report));
+    }
+
+    private void timeOut(PendingSetup pendingSetup) {
+        pendingSetup.cancel();
+
+        // Anything the module registers from now on is refused, so a late
+        // setup can't leave stray callbacks behind. The module may have been
+        // set up again with a new adapter meanwhile.
+        synchronized (this) {
+            ModuleSetup moduleSetup = pendingSetup.moduleSetup;
+            if (moduleSetups.get(pendingSetup.moduleFile) == moduleSetup) {
+                moduleSetups.remove(pendingSetup.moduleFile);
+            }
+            moduleSetup.adapter().close();
+        }
+
+        logger.warning(String.format(
+                    "Call to `setup()` for `Module` from `%s` did not finish within %d ms and was marked as failed",
+                    pendingSetup.moduleFile,
+                    TimeUnit.NANOSECONDS.toMillis(setupTimeoutNanos)));
+    }
+
+    // Called once the `setup()` method of a module has returned, even if it
+    // timed out before.
+    private synchronized void setupFinished(Module module) {
+        runningSetups.remove(module);
+
+        if (deferredSetups.remove(module)) {
+            requestModuleSetups();
+        }
+    }
+
+    // A call to the `setup()` method of a module, which may not have started
+    // yet or may still be running.
+    private final class PendingSetup implements Runnable {
+        private final File moduleFile;
+        private final Module module;
+        private final ModuleSetup moduleSetup;
+        private final MetaPrx meta;
+        private final ServerPrx server;
+
+        private BlockingQueue<PendingSetup> finishedSetups;
+        private Future<?> future;
+
+        // `startTime` is only valid once `isStarted` is true.
+        private volatile long startTime;
+        private volatile boolean isStarted;
+        private volatile long duration;
+        private volatile boolean hasThrown;
+        private volatile boolean isFinished;
+
+        private PendingSetup(
+                File moduleFile, Module module, ModuleSetup moduleSetup,
+                MetaPrx meta, ServerPrx server)
+        {
+            this.moduleFile = moduleFile;
+            this.module = module;
+            this.moduleSetup = moduleSetup;
+            this.meta = meta;
+            this.server = server;
+        }
+
+        private void start(BlockingQueue<PendingSetup> finishedSetups) {
+            this.finishedSetups = finishedSetups;
+            future = setupExecutor.submit(this);
+        }
+
+        @Override
+        public void run() {
+            startTime = System.nanoTime();
+            isStarted = true;
+
+            try {
+                module.setup(
+                        moduleSetup.config(), meta,
+                        moduleSetup.adapter().getView(), server);
+            } catch (java.lang.Exception e) {
+                hasThrown = true;
+                logger.log(Level.WARNING, "Call to `setup()` for `Module` from `" + moduleFile + "` threw: " + e);
+            } finally {
+                duration = System.nanoTime() - startTime;
+                isFinished = true;
+                setupFinished(module);
+                finishedSetups.add(this);
+            }
+        }
+
+        // Setups which haven't started yet can't time out.
+        private long getDeadline(long timeoutNanos) {
+            if (isStarted) {
+                return startTime + timeoutNanos;
+            } else {
+                return System.nanoTime() + timeoutNanos;
+            }
+        }
+
+        private boolean isFinished() {
+            return isFinished;
+        }
+
+        // Interrupt the module's `setup()` method, or keep it from being
+        // called at all if it hasn't started yet.
+        private void cancel() {
+            future.cancel(true);
+        }
+
+        private String describe() {
+            if (hasThrown) {
+                return String.format("`%s` (failed)", moduleFile.getName());
+            } else {
+                return String.format(
+                        "`%s` (%d ms)", moduleFile.getName(),
+                        TimeUnit.NANOSECONDS.toMillis(duration));
+            }
+        }
+    }
+
+    private static String getModuleName(File moduleFile) {
+        String moduleFileName = moduleFile.getName();
+        String moduleName = moduleFileName;
+
+        int moduleNameEndIndex = moduleFileName.lastIndexOf('.');
+        if (moduleNameEndIndex != -1) {
+            moduleName = moduleFileName.substring(0, moduleNameEndIndex);
+        }
+
+        return moduleName;
+    }
+
+    private Map<String, java.lang.Object> getModuleConfig(File moduleFile) {
+        Toml moduleTable = config.getTable(getModuleName(moduleFile));
+        if (moduleTable != null) {
+            return moduleTable.toMap();
+        } else {
+            return new HashMap<>();
         }
     }
 
@@ -300,17 +809,19 @@ final class Client {
         }
 
         disconnect();
-        communicator.destroy();
+        CommunicatorPool.release(communicatorLease);
+        setupRunner.shutdownNow();
+        if (callbackExecutor != null) {
+            callbackExecutor.shutdown();
+        }
     }
 
     private void setAutoReconnectEnabled(boolean isEnabled) {
-        if (meta != null) {
-            Connection connection = meta.ice_getConnection();
-
+        if (communicatorLease != null) {
             if (isEnabled) {
-                connection.setCloseCallback(closed -> startReconnectThread());
+                communicatorLease.setCloseListener(this::startReconnectThread);
             } else {
-                connection.setCloseCallback(closed -> {});
+                communicatorLease.setCloseListener(null);
             }
         }
     }
@@ -10,6 +10,8 @@ import java.io.InputStream;
 import java.io.FileInputStream;
 import java.io.SequenceInputStream;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Stream;
 import java.util.jar.JarFile;
 import java.util.jar.JarEntry;
@@ -64,10 +66,17 @@ final class ClientManager {
     private static final String ICE_SECRET_VAR = "ice_secret";
     private static final String CALLBACK_HOST_VAR = "callback_host";
     private static final String CALLBACK_PORT_VAR = "callback_port";
+    private static final String PARALLEL_CALLBACKS_VAR = "parallel_callbacks";
+    private static final String CALLBACK_THREADS_VAR = "callback_threads";
+    private static final String SETUP_TIMEOUT_VAR = "setup_timeout";
+    private static final String COALESCE_STATE_CHANGES_VAR = "coalesce_state_changes";
     private static final String ENABLED_MODULES_VAR = "enabled_modules";
     private static final String SERVER_NAME_VAR = "server_name";
     private static final String SERVER_ID_VAR = "server_id";
+    private static final String SERVER_IDS_VAR = "server_ids";
+    private static final String ALL_SERVERS = "*";
     private static final String ENABLED_VAR = "enabled";
+    private static final String ACCEPT_MESSAGES_FROM_VAR = "accept_messages_from";
 
     // Directories from which ClientManager reads files
     private static File serverConfigDir = new File("servers");
@@ -87,6 +96,11 @@ final class ClientManager {
     // Map config files to Client objects
     private static final Map<File, Client> clientMap = new HashMap<>();
 
+    // Map config files with `server_ids` to the groups of Clients created for
+    // them. The Clients themselves are also in `clientMap`.
+    private static final Map<File, ServerGroup> serverGroups = new HashMap<>();
+    private static final AtomicBoolean serverGroupsChanged = new AtomicBoolean();
+
     // Map db files to db Connections. These are kept track of so we can make
     // sure there is only ever 1 open connection to each database file.
     private static final Map<File, Connection> connectionMap = new HashMap<>();
@@ -97,6 +111,24 @@ final class ClientManager {
 
     private ClientManager() {}
 
+    // Settings from the `[server]` table of a server configuration
+    private static record ClientSettings(
+            String[] iceArgs, String iceHost, int icePort, String iceSecret,
+            String callbackHost, int callbackPort,
+            int callbackThreads, long setupTimeout,
+            Map<String, Long> coalescingWindows,
+            List<String> enabledModuleNames, List<String> acceptMessagesFrom,
+            Toml config) {}
+
+    private static final class ServerGroup {
+        private ClientSettings settings;
+        // null if the group applies to every running virtual server
+        private Set<Integer> serverIDs;
+        // Keeps track of the running virtual servers if `serverIDs` is null
+        private Client watcher;
+        private final Map<Integer, File> memberFiles = new HashMap<>();
+    }
+
     public static void main(String[] args) throws Exception {
         setupLogging();
 
@@ -112,11 +144,17 @@ final class ClientManager {
             moduleDir.toPath().register(
                     watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
 
-            WatchKey key;
-            while ((key = watcher.take()) != null) {
-                key.pollEvents();
-                updateClientsAndModules();
-                key.reset();
+            // Changes to the running virtual servers of server groups don't
+            // produce file events, so they are checked for periodically.
+            while (true) {
+                WatchKey key = watcher.poll(1, TimeUnit.SECONDS);
+                if (key != null) {
+                    key.pollEvents();
+                    updateClientsAndModules();
+                    key.reset();
+                }
+
+                updateServerGroups();
             }
         } catch (Exception e) {
             logger.warning(String.format("""
@@ -127,6 +165,7 @@ final class ClientManager {
             while (true) {
                 Thread.sleep(5000);
                 updateClientsAndModules();
+                updateServerGroups();
             }
         }
     }
@@ -200,6 +239,33 @@ final class ClientManager {
                         .orElse(-1L)
                         .intValue();
 
+                    boolean parallelCallbacks = Optional.ofNullable(
+                            serverConfig.getBoolean(PARALLEL_CALLBACKS_VAR))
+                        .orElse(false);
+
+                    long callbackThreadCount = Optional.ofNullable(
+                            serverConfig.getLong(CALLBACK_THREADS_VAR))
+                        .orElse(4L);
+                    if (callbackThreadCount < 1) {
+                        String errorMsg = String.format(
+                                "`%s` must be at least 1", CALLBACK_THREADS_VAR);
+                        throw new IllegalArgumentException(errorMsg);
+                    }
+                    // Without parallel callbacks, Ice's dispatch thread runs them.
+                    int callbackThreads = parallelCallbacks ? (int) callbackThreadCount : 0;
+
+                    long setupTimeout = Optional.ofNullable(
+                            serverConfig.getLong(SETUP_TIMEOUT_VAR))
+                        .orElse(30000L);
+                    if (setupTimeout < 1) {
+                        String errorMsg = String.format(
+                                "`%s` must be at least 1", SETUP_TIMEOUT_VAR);
+                        throw new IllegalArgumentException(errorMsg);
+                    }
+
+                    Map<String, Long> coalescingWindows = parseCoalescingWindows(
+                            serverConfig.getTable(COALESCE_STATE_CHANGES_VAR));
+
                     List<String> enabledModuleNames = Optional.ofNullable(
                             serverConfig.getList(ENABLED_MODULES_VAR, new ArrayList<String>()))
                         .orElse(new ArrayList<>());
@@ -209,54 +275,35 @@ final class ClientManager {
                     String serverName = serverConfig.getString(SERVER_NAME_VAR);
                     Long serverID = serverConfig.getLong(SERVER_ID_VAR);
 
-                    // Get Client
-                    Client client;
-
-                    if (clientMap.containsKey(changedServerConfigFile)) {
-                        client = clientMap.get(changedServerConfigFile);
-                    } else {
-                        Logger clientLogger = Logger.getLogger(
-                                String.join(".",
-                                    BASE_LOGGER,
-                                    CLIENT_LOGGER,
-                                    serverConfigFileName(changedServerConfigFile)));
-                        logManager.addLogger(clientLogger);
-
-                        client = new Client(clientLogger);
-                        clientMap.put(changedServerConfigFile, client);
-                    }
+                    List<String> acceptMessagesFrom = Optional.ofNullable(
+                            serverConfig.getList(ACCEPT_MESSAGES_FROM_VAR, new ArrayList<String>()))
+                        .orElse(new ArrayList<>());
 
-                    Map<File, Class<?>> enabledModuleClasses = new HashMap<>();
-                    for (String moduleName: enabledModuleNames) {
-                        File enabledModuleFile = moduleFileFromName(moduleName);
-                        if (moduleClasses.containsKey(enabledModuleFile)) {
-                            Class<?> moduleClass = moduleClasses.get(enabledModuleFile);
-                            enabledModuleClasses.put(enabledModuleFile, moduleClass);
-                        } else {
-                            // If the class is unavailable, still insert null
-                            // so that if the class becomes available, the client
-                            // can be updated.
-                            enabledModuleClasses.put(enabledModuleFile, null);
-                        }
-                    }
-                    Map<File, Module> enabledModules = moduleMapFromClassMap(
-                            enabledModuleClasses, changedServerConfigFile, client);
-
-                    // Clean up message passing and database connections for
-                    // modules which are no longer enabled.
-                    for (File previouslyEnabledModule: client.getEnabledModules()) {
-                        if (!enabledModules.containsKey(previouslyEnabledModule)) {
-                            removeModule(
-                                    previouslyEnabledModule,
-                                    changedServerConfigFile);
+                    ClientSettings settings = new ClientSettings(
+                            iceArgs, iceHost, icePort, iceSecret,
+                            callbackHost, callbackPort,
+                            callbackThreads, setupTimeout,
+                            coalescingWindows,
+                            enabledModuleNames, acceptMessagesFrom, config);
+
+                    Object serverIDs = serverConfig.toMap().get(SERVER_IDS_VAR);
+                    if (serverIDs != null) {
+                        // The configuration may previously have been for a
+                        // single virtual server.
+                        if (clientMap.containsKey(changedServerConfigFile)) {
+                            removeClient(changedServerConfigFile);
                         }
-                    }
 
+                        configureServerGroup(
+                                changedServerConfigFile, settings,
+                                parseServerIDs(serverIDs));
+                    } else {
+                        removeServerGroup(changedServerConfigFile);
 
-                    client.reconfigure(
-                            iceArgs, iceHost, icePort, iceSecret,
-                            callbackHost, callbackPort,
-                            enabledModules, serverName, serverID, config);
+                        configureClient(
+                                changedServerConfigFile, settings,
+                                serverName, serverID);
+                    }
                 } catch (Exception e) {
                     logger.log(Level.WARNING, "Parsing `" + changedServerConfigFile + "` threw: " + e.getMessage());
                 }
@@ -267,6 +314,237 @@ final class ClientManager {
         }
     }
 
+    // Create or re-configure the Client for a single virtual server.
+    private static void configureClient(
+            File clientFile, ClientSettings settings,
+            String serverName, Long serverID)
+    {
+        MessagePasser.setAcceptedServers(
+                serverConfigFileName(clientFile),
+                settings.acceptMessagesFrom());
+
+        // Get Client
+        Client client;
+
+        if (clientMap.containsKey(clientFile)) {
+            client = clientMap.get(clientFile);
+        } else {
+            client = new Client(getClientLogger(clientFile));
+            clientMap.put(clientFile, client);
+        }
+
+        Map<File, Class<?>> enabledModuleClasses = new HashMap<>();
+        for (String moduleName: settings.enabledModuleNames()) {
+            File enabledModuleFile = moduleFileFromName(moduleName);
+            if (moduleClasses.containsKey(enabledModuleFile)) {
+                Class<?> moduleClass = moduleClasses.get(enabledModuleFile);
+                enabledModuleClasses.put(enabledModuleFile, moduleClass);
+            } else {
+                // If the class is unavailable, still insert null
+                // so that if the class becomes available, the client
+                // can be updated.
+                enabledModuleClasses.put(enabledModuleFile, null);
+            }
+        }
+        Map<File, Module> enabledModules = moduleMapFromClassMap(
+                enabledModuleClasses, clientFile, client);
+
+        // Clean up message passing and database connections for
+        // modules which are no longer enabled.
+        for (File previouslyEnabledModule: client.getEnabledModules()) {
+            if (!enabledModules.containsKey(previouslyEnabledModule)) {
+                removeModule(previouslyEnabledModule, clientFile);
+            }
+        }
+
+        client.reconfigure(
+                settings.iceArgs(), settings.iceHost(), settings.icePort(),
+                settings.iceSecret(),
+                settings.callbackHost(), settings.callbackPort(),
+                settings.callbackThreads(), settings.setupTimeout(),
+                settings.coalescingWindows(),
+                enabledModules, serverName, serverID, settings.config());
+    }
+
+    private static Logger getClientLogger(File clientFile) {
+        Logger clientLogger = Logger.getLogger(
+                String.join(".",
+                    BASE_LOGGER,
+                    CLIENT_LOGGER,
+                    serverConfigFileName(clientFile)));
+        logManager.addLogger(clientLogger);
+        return clientLogger;
+    }
+
+    // Parse the table of module names to coalescing windows in milliseconds.
+    private static Map<String, Long> parseCoalescingWindows(Toml windowTable) {
+        Map<String, Long> coalescingWindows = new HashMap<>();
+        if (windowTable == null) {
+            return coalescingWindows;
+        }
+
+        for (Map.Entry<String, Object> entry: windowTable.toMap().entrySet()) {
+            if (
+                    !(entry.getValue() instanceof Number window)
+                    || window.longValue() < 0)
+            {
+                String errorMsg = String.format(
+                        "`%s.%s` must be a non-negative number of milliseconds",
+                        COALESCE_STATE_CHANGES_VAR, entry.getKey());
+                throw new IllegalArgumentException(errorMsg);
+            }
+
+            coalescingWindows.put(entry.getKey(), window.longValue());
+        }
+
+        return coalescingWindows;
+    }
+
+    // Parse the value of `server_ids`, returning null if it is "*", i.e. if
+    // every running virtual server should be used.
+    private static Set<Integer> parseServerIDs(Object serverIDs) {
+        if (ALL_SERVERS.equals(serverIDs)) {
+            return null;
+        } else if (serverIDs instanceof List<?> serverIDList) {
+            Set<Integer> ids = new HashSet<>();
+            for (Object id: serverIDList) {
+                if (!(id instanceof Number)) {
+                    break;
+                }
+                ids.add(((Number) id).intValue());
+            }
+
+            if (ids.size() == serverIDList.size()) {
+                return ids;
+            }
+        }
+
+        String errorMsg = String.format(
+                "`%s` must be \"%s\" or a list of server IDs",
+                SERVER_IDS_VAR, ALL_SERVERS);
+        throw new IllegalArgumentException(errorMsg);
+    }
+
+    // Create or re-configure the Clients for a configuration which applies to
+    // several virtual servers.
+    private static void configureServerGroup(
+            File serverConfigFile, ClientSettings settings, Set<Integer> serverIDs)
+    {
+        ServerGroup group = serverGroups.get(serverConfigFile);
+        if (group == null) {
+            group = new ServerGroup();
+            serverGroups.put(serverConfigFile, group);
+        }
+
+        group.settings = settings;
+        group.serverIDs = serverIDs;
+
+        if (serverIDs == null) {
+            // Without any modules, the watcher only keeps track of which
+            // virtual servers are running.
+            if (group.watcher == null) {
+                group.watcher = new Client(getClientLogger(serverConfigFile));
+                group.watcher.setServerListListener(
+                        () -> serverGroupsChanged.set(true));
+            }
+
+            group.watcher.reconfigure(
+                    settings.iceArgs(), settings.iceHost(), settings.icePort(),
+                    settings.iceSecret(),
+                    settings.callbackHost(), settings.callbackPort(),
+                    settings.callbackThreads(), settings.setupTimeout(),
+                    settings.coalescingWindows(),
+                    new HashMap<>(), null, null, settings.config());
+        } else if (group.watcher != null) {
+            group.watcher.cleanup();
+            group.watcher = null;
+        }
+
+        updateServerGroup(serverConfigFile, group, true);
+    }
+
+    // Add and remove the Clients of a server group to match the virtual
+    // servers it applies to. Existing Clients are only re-configured if
+    // `reconfigureMembers` is true.
+    private static void updateServerGroup(
+            File serverConfigFile, ServerGroup group, boolean reconfigureMembers)
+    {
+        Set<Integer> serverIDs = group.serverIDs;
+        if (serverIDs == null) {
+            serverIDs = group.watcher.getRunningServerIDs();
+        }
+
+        if (serverIDs != null) {
+            for (Integer serverID: new ArrayList<>(group.memberFiles.keySet())) {
+                if (!serverIDs.contains(serverID)) {
+                    removeClient(group.memberFiles.remove(serverID));
+                }
+            }
+        } else {
+            // The running servers aren't known (yet), so keep the Clients
+            // which exist.
+            serverIDs = new HashSet<>(group.memberFiles.keySet());
+        }
+
+        for (Integer serverID: serverIDs) {
+            File memberFile = group.memberFiles.get(serverID);
+            if (memberFile != null && !reconfigureMembers) {
+                continue;
+            }
+
+            if (memberFile == null) {
+                memberFile = serverGroupMemberFile(serverConfigFile, serverID);
+                group.memberFiles.put(serverID, memberFile);
+            }
+
+            try {
+                configureClient(
+                        memberFile, group.settings, null, serverID.longValue());
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Configuring `" + memberFile + "` threw: " + e.getMessage());
+            }
+        }
+    }
+
+    // Called from the main loop, since changes to the running servers are
+    // reported on Ice threads.
+    private static void updateServerGroups() {
+        if (serverGroupsChanged.getAndSet(false)) {
+            for (Map.Entry<File, ServerGroup> groupEntry: serverGroups.entrySet()) {
+                updateServerGroup(groupEntry.getKey(), groupEntry.getValue(), false);
+            }
+        }
+    }
+
+    private static void removeServerGroup(File serverConfigFile) {
+        ServerGroup group = serverGroups.remove(serverConfigFile);
+
+        if (group != null) {
+            for (File memberFile: group.memberFiles.values()) {
+                removeClient(memberFile);
+            }
+
+            if (group.watcher != null) {
+                group.watcher.cleanup();
+            }
+        }
+    }
+
+    // The virtual servers of a server group are treated as if each of them
+    // had a configuration of its own, named after the group's configuration
+    // and the server ID, e.g. `servers/foo@3.toml`.
+    private static File serverGroupMemberFile(File serverConfigFile, int serverID) {
+        String path = serverConfigFile.getPath();
+        String suffix = "";
+
+        if (path.endsWith(SERVER_CONFIG_EXTENSION)) {
+            path = path.substring(0, path.length() - SERVER_CONFIG_EXTENSION.length());
+            suffix = SERVER_CONFIG_EXTENSION;
+        }
+
+        return new File(path + "@" + serverID + suffix);
+    }
+
     private static Toml readServerConfig(File serverConfigFile) throws Exception {
         Toml config = new Toml();
         if (serverConfigFile.isDirectory()) {
@@ -323,6 +601,8 @@ final class ClientManager {
 
     // Remove a client and drop all resources related to that client
     private static void removeClient(File configFile) {
+        removeServerGroup(configFile);
+
         MessagePasser.removeServer(serverConfigFileName(configFile));
 
         if (clientMap.containsKey(configFile)) {
@@ -635,45 +915,59 @@ final class ClientManager {
 
     private static void updateModuleClasses(Set<File> changedModuleFiles) {
         for (File changedModuleFile: changedModuleFiles) {
-            // Remove classes for files which no longer exist
-            if (!changedModuleFile.exists()) {
-                moduleClasses.remove(changedModuleFile);
-                continue;
+            Class<?> previousModuleClass = moduleClasses.get(changedModuleFile);
+            loadModuleClass(changedModuleFile);
+
+            // If the previous class (and its ClassLoader) was dropped, any
+            // conversions cached for its classes must be dropped as well.
+            if (
+                    previousModuleClass != null
+                    && previousModuleClass != moduleClasses.get(changedModuleFile))
+            {
+                ClassConverter.invalidate(previousModuleClass.getClassLoader());
             }
+        }
+    }
 
-            try (JarFile jar = new JarFile(changedModuleFile)) {
-
-                URL moduleFileURL = changedModuleFile.toURI().toURL();
-                URL[] urls = { moduleFileURL };
-
-                Enumeration<JarEntry> entries = jar.entries();
-                while (entries.hasMoreElements()) {
-                    URLClassLoader classLoader = new URLClassLoader(urls);
-
-                    JarEntry entry = entries.nextElement();
-                    String className = entry.getName().replace('/', '.');
-                    if (className.endsWith(CLASS_EXTENSION)) {
-                        className = className.substring(
-                                0, className.length() - CLASS_EXTENSION.length());
-
-                        // The classes loaded from module JAR files might use
-                        // classes that aren't available to the current
-                        // ClassLoader. If this is the case, we just skip
-                        // trying to load the class.
-                        try {
-                            Class<?> moduleClass = Class.forName(
-                                    className, true, classLoader);
-
-                            if (Module.class.isAssignableFrom(moduleClass)) {
-                                moduleClasses.put(changedModuleFile, moduleClass);
-                                break;
-                            }
-                        } catch (Exception ignored) {}
-                    }
+    private static void loadModuleClass(File changedModuleFile) {
+        // Remove classes for files which no longer exist
+        if (!changedModuleFile.exists()) {
+            moduleClasses.remove(changedModuleFile);
+            return;
+        }
+
+        try (JarFile jar = new JarFile(changedModuleFile)) {
+
+            URL moduleFileURL = changedModuleFile.toURI().toURL();
+            URL[] urls = { moduleFileURL };
+
+            Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                URLClassLoader classLoader = new URLClassLoader(urls);
+
+                JarEntry entry = entries.nextElement();
+                String className = entry.getName().replace('/', '.');
+                if (className.endsWith(CLASS_EXTENSION)) {
+                    className = className.substring(
+                            0, className.length() - CLASS_EXTENSION.length());
+
+                    // The classes loaded from module JAR files might use
+                    // classes that aren't available to the current
+                    // ClassLoader. If this is the case, we just skip
+                    // trying to load the class.
+                    try {
+                        Class<?> moduleClass = Class.forName(
+                                className, true, classLoader);
+
+                        if (Module.class.isAssignableFrom(moduleClass)) {
+                            moduleClasses.put(changedModuleFile, moduleClass);
+                            break;
+                        }
+                    } catch (Exception ignored) {}
                 }
-            } catch (IOException e) {
-                logger.log(Level.WARNING, "Reading JAR file `" + changedModuleFile + "` threw: " + e);
             }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Reading JAR file `" + changedModuleFile + "` threw: " + e);
         }
     }
 
@@ -683,7 +977,8 @@ final class ClientManager {
     }
 
     private static void cleanupClients() {
-        Set<File> files = new HashSet<>(clientMap.keySet());
+        Set<File> files = new HashSet<>(serverGroups.keySet());
+        files.addAll(clientMap.keySet());
         for (File file: files) {
             removeClient(file);
         }
@@ -0,0 +1,348 @@
+package icejar;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import com.zeroc.Ice.*;
+import MumbleServer.*;
+
+
+// Clients which connect to the same Mumble server with the same settings share
+// a single Communicator (and therefore its thread pools and its connection to
+// the Mumble server) instead of each creating their own. Clients which also
+// have the same callback endpoints share a single ObjectAdapter.
+final class CommunicatorPool {
+    private static final String ICE_CONTEXT_SECRET_VAR = "secret";
+
+    private static final Map<Key, Entry> entries = new HashMap<>();
+
+    private CommunicatorPool() {}
+
+    private static record Key(
+            String iceHost, int icePort, List<String> iceArgs,
+            String iceSecret) {}
+
+    // A Client's share of a pooled Communicator. Each Lease must be released
+    // exactly once.
+    static final class Lease {
+        private final Entry entry;
+        private Runnable closeListener;
+        private String adapterEndpoints;
+        private boolean isReleased;
+
+        private Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        Communicator getCommunicator() {
+            return entry.communicator;
+        }
+
+        boolean matches(
+                String iceHost, int icePort, String[] iceArgs,
+                String iceSecret)
+        {
+            return !isReleased
+                && !entry.communicator.isShutdown()
+                && entry.key.equals(createKey(
+                            iceHost, icePort, iceArgs, iceSecret));
+        }
+
+        // Get the Meta proxy for the Mumble server, connecting to it if
+        // there is no connection yet.
+        MetaPrx getMeta() throws java.lang.Exception {
+            return entry.getMeta();
+        }
+
+        // Get an active adapter with the given endpoints, which may be shared
+        // with other Leases. Each Lease holds at most one adapter at a time.
+        synchronized ObjectAdapter acquireAdapter(String endpoints) {
+            releaseAdapter();
+
+            ObjectAdapter adapter = entry.acquireAdapter(endpoints);
+            adapterEndpoints = endpoints;
+            return adapter;
+        }
+
+        // Give up the adapter held by this Lease, if any. The adapter is
+        // destroyed once no Lease holds it.
+        synchronized void releaseAdapter() {
+            if (adapterEndpoints != null) {
+                entry.releaseAdapter(adapterEndpoints);
+                adapterEndpoints = null;
+            }
+        }
+
+        // Get the cache of virtual server names for the current connection
+        // to the Mumble server.
+        ServerDirectory getServerDirectory() {
+            return entry.serverDirectory;
+        }
+
+        // Register the ServerDirectory as a MetaCallback for the current
+        // connection, unless that has already been done. Must be called once
+        // this Lease holds an adapter.
+        CompletableFuture<Void> registerServerDirectory() {
+            return entry.registerServerDirectory();
+        }
+
+        // Set a method which is called when the connection to the Mumble
+        // server is closed by anything other than the release of the last
+        // Lease, or null to stop being notified.
+        synchronized void setCloseListener(Runnable closeListener) {
+            if (this.closeListener != null) {
+                entry.closeListeners.remove(this.closeListener);
+            }
+
+            this.closeListener = closeListener;
+
+            if (closeListener != null && !isReleased) {
+                entry.closeListeners.add(closeListener);
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final Key key;
+        private final Communicator communicator;
+        private final Set<Runnable> closeListeners = new CopyOnWriteArraySet<>();
+        private final ServerDirectory serverDirectory = new ServerDirectory();
+        private final Map<String, SharedAdapter> adapters = new HashMap<>();
+        private int leaseCount;
+
+        private MetaPrx meta;
+        private Connection connection;
+
+        // The ServerDirectory is registered with the Mumble server once per
+        // connection, through one of the shared adapters, rather than once
+        // per Client, so that each of its events only arrives once.
+        private MetaCallbackPrx directoryCallback;
+        private String directoryEndpoints;
+        private CompletableFuture<Void> directoryRegistration;
+
+        private Entry(Key key) {
+            this.key = key;
+
+            Properties properties = Util.createProperties();
+            properties.setProperty("Ice.ImplicitContext", "Shared");
+            properties.setProperty("Ice.ThreadPool.Client.SizeMax", "1");
+            // Callbacks from the Mumble server must be dispatched in order, or
+            // e.g. a user's state could change after they disconnected, so
+            // they are dispatched by a single thread. Callbacks which should
+            // not hold up others are handed to lanes instead (see
+            // CallbackDispatch), and authenticators are called on threads of
+            // their own (see AuthenticatorDispatch).
+            properties.setProperty("Ice.ThreadPool.Server.SizeMax", "1");
+
+            InitializationData initData = new InitializationData();
+            initData.properties = properties;
+
+            communicator = Util.initialize(initData);
+
+            ImplicitContext iceContext = communicator.getImplicitContext();
+            iceContext.put(
+                    ICE_CONTEXT_SECRET_VAR,
+                    Optional.ofNullable(key.iceSecret()).orElse(""));
+        }
+
+        private synchronized ObjectAdapter acquireAdapter(String endpoints) {
+            SharedAdapter sharedAdapter = adapters.get(endpoints);
+
+            if (sharedAdapter == null) {
+                // Adapter names must be unique within a communicator.
+                ObjectAdapter adapter = communicator.createObjectAdapterWithEndpoints(
+                        "Callback.Client." + UUID.randomUUID(), endpoints);
+                adapter.activate();
+
+                sharedAdapter = new SharedAdapter(adapter);
+                adapters.put(endpoints, sharedAdapter);
+            }
+
+            sharedAdapter.useCount++;
+            return sharedAdapter.adapter;
+        }
+
+        private synchronized void releaseAdapter(String endpoints) {
+            SharedAdapter sharedAdapter = adapters.get(endpoints);
+
+            if (sharedAdapter != null && --sharedAdapter.useCount == 0) {
+                adapters.remove(endpoints);
+                sharedAdapter.adapter.destroy();
+
+                // Move the ServerDirectory to one of the remaining adapters.
+                // If that fails, the next Client to connect tries again.
+                if (endpoints.equals(directoryEndpoints)) {
+                    unregisterServerDirectory();
+                    registerServerDirectory();
+                }
+            }
+        }
+
+        private synchronized CompletableFuture<Void> registerServerDirectory() {
+            if (directoryRegistration != null) {
+                return directoryRegistration;
+            } else if (meta == null || adapters.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            String endpoints = adapters.keySet().iterator().next();
+            MetaCallbackPrx callback = IceHelper.getMetaCallback(
+                    adapters.get(endpoints).adapter, serverDirectory);
+
+            CompletableFuture<Void> registration;
+            try {
+                registration = meta.addCallbackAsync(callback);
+            } catch (RuntimeException e) {
+                registration = CompletableFuture.failedFuture(e);
+            }
+
+            directoryCallback = callback;
+            directoryEndpoints = endpoints;
+            directoryRegistration = registration;
+
+            // Replies are completed on Ice's client thread, which must not
+            // wait for the lock on this Entry, since the lock is held during
+            // requests whose replies need that thread.
+            registration.whenCompleteAsync((r, e) -> {
+                if (e != null) {
+                    synchronized (this) {
+                        if (directoryRegistration == registration) {
+                            unregisterServerDirectory();
+                        }
+                    }
+                }
+            });
+
+            return registration;
+        }
+
+        // Must be called while synchronized on this Entry.
+        private void unregisterServerDirectory() {
+            if (directoryCallback == null) {
+                return;
+            }
+
+            SharedAdapter sharedAdapter = adapters.get(directoryEndpoints);
+            if (sharedAdapter != null) {
+                sharedAdapter.adapter.remove(directoryCallback.ice_getIdentity());
+            }
+
+            // The previous connection may already be gone, so this doesn't
+            // wait for a reply.
+            if (meta != null) {
+                try {
+                    meta.removeCallbackAsync(directoryCallback);
+                } catch (RuntimeException ignored) {}
+            }
+
+            directoryCallback = null;
+            directoryEndpoints = null;
+            directoryRegistration = null;
+        }
+
+        private synchronized MetaPrx getMeta() throws java.lang.Exception {
+            if (meta == null) {
+                String proxyString = String.format(
+                        "Meta:default -h %s -p %d ", key.iceHost(), key.icePort());
+                proxyString = proxyString + String.join(" ", key.iceArgs());
+                meta = MetaPrx.checkedCast(communicator.stringToProxy(proxyString));
+
+                // NOTE: Mumble re-named its Ice module from "Murmur" to
+                // "MumbleServer". If you try to connect to a Mumble server
+                // which was built against the old Ice module with a build of
+                // icejar which uses the new module or vice-versa, the call to
+                // `MetaPrx.checkedCast` will return `null`.
+                if (meta == null) {
+                    throw new java.lang.Exception("Remote object is not a MumbleServer Meta object");
+                }
+            }
+
+            Connection connection = meta.ice_getConnection();
+
+            if (connection != this.connection) {
+                this.connection = connection;
+
+                // The virtual servers may have changed while there was no
+                // connection, and the ServerDirectory must be registered
+                // again for the new one.
+                serverDirectory.clear();
+                unregisterServerDirectory();
+
+                // Set Active Connection Management (ACM) parameters
+                connection.setACM(
+                        OptionalInt.of(120),
+                        Optional.of(ACMClose.CloseOnIdle),
+                        Optional.of(ACMHeartbeat.HeartbeatOnIdle));
+
+                connection.setCloseCallback(closed -> {
+                    for (Runnable closeListener: closeListeners) {
+                        closeListener.run();
+                    }
+                });
+            }
+
+            return meta;
+        }
+    }
+
+    private static final class SharedAdapter {
+        private final ObjectAdapter adapter;
+        private int useCount;
+
+        private SharedAdapter(ObjectAdapter adapter) {
+            this.adapter = adapter;
+        }
+    }
+
+    private static Key createKey(
+            String iceHost, int icePort, String[] iceArgs, String iceSecret)
+    {
+        return new Key(iceHost, icePort, Arrays.asList(iceArgs), iceSecret);
+    }
+
+    static synchronized Lease acquire(
+            String iceHost, int icePort, String[] iceArgs, String iceSecret)
+    {
+        Key key = createKey(iceHost, icePort, iceArgs, iceSecret);
+
+        Entry entry = entries.get(key);
+        if (entry == null || entry.communicator.isShutdown()) {
+            entry = new Entry(key);
+            entries.put(key, entry);
+        }
+
+        entry.leaseCount++;
+        return new Lease(entry);
+    }
+
+    static synchronized void release(Lease lease) {
+        if (lease.isReleased) {
+            return;
+        }
+
+        lease.setCloseListener(null);
+        lease.releaseAdapter();
+        lease.isReleased = true;
+
+        Entry entry = lease.entry;
+        entry.leaseCount--;
+
+        if (entry.leaseCount == 0) {
+            if (entries.get(entry.key) == entry) {
+                entries.remove(entry.key);
+            }
+
+            // Nobody is listening any more, so closing the connection won't
+            // trigger a reconnect.
+            entry.communicator.destroy();
+        }
+    }
+}
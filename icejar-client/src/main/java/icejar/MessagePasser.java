@@ -2,71 +2,429 @@ package icejar;
 
 import icejar.MessagePassing;
 
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
-import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.lang.ref.Cleaner;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Optional;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 
 final class MessagePasser {
 
-    private static final Map<String, Map<String, Map<String, Receiver<?>>>> receivers = new HashMap<>();
+    private static final Logger logger = Logger.getLogger("icejar.messages");
+
+    // Every (server, module, channel) which is in use has a single Route.
+    // Senders keep a reference to their Route, so sending a message never has
+    // to look anything up in this map. A Route is removed once it has no
+    // Receiver or Responder and every Sender and Requester for it has been
+    // garbage collected.
+    private static final Map<RouteKey, Route> routes = new ConcurrentHashMap<>();
+
+    // Releases the Route of each Sender and Requester once it is unreachable.
+    private static final Cleaner cleaner = Cleaner.create();
+
+    // Publishers keep a reference to their Topic in the same way, and a Topic
+    // is removed once it has no subscriptions and every Publisher for it has
+    // been garbage collected.
+    private static final Map<TopicKey, Topic> topics = new ConcurrentHashMap<>();
+
+    // The names of the other servers whose modules may send messages to the
+    // modules of a server, by the name of the receiving server.
+    private static final Map<String, Set<String>> acceptedServers = new ConcurrentHashMap<>();
+    private static final String ANY_SERVER = "*";
+
+    // Runs the handlers of queued Receivers, so that they never run on the
+    // thread of the module which sent the message.
+    private static final ExecutorService handlerExecutor =
+        Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "icejar-message-handler");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    // Runs the handlers of Responders. It is bounded, so that handlers which
+    // are slow to reply can't start an unbounded number of threads; requests
+    // wait in its queue instead, and each Requester limits how many of its
+    // requests can wait.
+    private static final ThreadPoolExecutor responderExecutor;
+
+    static {
+        int threadCount = Math.max(4, Runtime.getRuntime().availableProcessors());
+        responderExecutor = new ThreadPoolExecutor(
+                threadCount, threadCount, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "icejar-responder");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        responderExecutor.allowCoreThreadTimeOut(true);
+    }
 
     private MessagePasser() {}
 
-    // Make sure that the nested mapping for the given server and module exists
-    private static synchronized <T> void createMappingFor(
-            Map<String, Map<String, Map<String, T>>> map,
-            String serverName, String moduleName)
+    private static record RouteKey(
+            String serverName, String moduleName, String channel) {}
+
+    static final class Route {
+        private final RouteKey key;
+
+        // The Receiver and Responder currently listening on this route, or
+        // null if there are none. Only written while holding the
+        // MessagePasser lock.
+        private volatile Receiver<?> receiver;
+        private volatile Responder<?, ?> responder;
+
+        // The number of Senders and Requesters for this route which haven't
+        // been garbage collected. Only accessed while holding the
+        // MessagePasser lock.
+        private int handleCount;
+
+        // Kept for as long as the route, so that the metrics of a module's
+        // channels are not reset when the module is reloaded.
+        private final ChannelMetrics metrics = new ChannelMetrics();
+
+        private Route(RouteKey key) {
+            this.key = key;
+        }
+
+        Receiver<?> getReceiver() {
+            return receiver;
+        }
+
+        Responder<?, ?> getResponder() {
+            return responder;
+        }
+    }
+
+    private static record TopicKey(String serverName, String topic) {}
+
+    static final class Topic {
+        private final TopicKey key;
+
+        // Subscriptions by the name of the subscribed module. Only accessed
+        // while holding the MessagePasser lock.
+        private final Map<String, Receiver<?>> subscriptions = new HashMap<>();
+
+        // Copy of the subscriptions which is replaced whenever they change,
+        // so that publishing never needs the MessagePasser lock.
+        private volatile Receiver<?>[] subscribers = new Receiver<?>[0];
+
+        // The number of Publishers for this topic which haven't been garbage
+        // collected. Only accessed while holding the MessagePasser lock.
+        private int handleCount;
+
+        // Metrics by the name of the subscribed module. Like the metrics of
+        // a Route, they are kept for as long as the topic.
+        private final Map<String, ChannelMetrics> metrics = new ConcurrentHashMap<>();
+
+        private Topic(TopicKey key) {
+            this.key = key;
+        }
+
+        Receiver<?>[] getSubscribers() {
+            return subscribers;
+        }
+
+        private void updateSubscribers() {
+            subscribers = subscriptions.values().toArray(new Receiver<?>[0]);
+        }
+    }
+
+    // Must be called while holding the MessagePasser lock, so that the Topic
+    // can't be removed before it's used.
+    private static Topic getTopic(String serverName, String topic) {
+        return topics.computeIfAbsent(new TopicKey(serverName, topic), Topic::new);
+    }
+
+    // Must be called while holding the MessagePasser lock, so that the Route
+    // can't be removed before it's used.
+    private static Route getRoute(
+            String serverName, String moduleName, String channel)
+    {
+        return routes.computeIfAbsent(
+                new RouteKey(serverName, moduleName, channel), Route::new);
+    }
+
+    // Get the Route for a new Sender or Requester, which must then be passed
+    // to `registerHandle()`.
+    private static synchronized Route acquireRoute(
+            String serverName, String moduleName, String channel)
     {
-        if (!map.containsKey(serverName)) {
-            map.put(serverName, new HashMap<>());
+        Route route = getRoute(serverName, moduleName, channel);
+        route.handleCount++;
+        return route;
+    }
+
+    // Keep the Route until the given Sender or Requester is garbage
+    // collected. The cleaning action must not refer to the handle itself.
+    private static <H> H registerHandle(Route route, H handle) {
+        cleaner.register(handle, () -> releaseRoute(route));
+        return handle;
+    }
+
+    private static synchronized void releaseRoute(Route route) {
+        route.handleCount--;
+        removeIfUnused(route);
+    }
+
+    // Get the Topic for a new Publisher, which must then be passed to
+    // `registerHandle()`.
+    private static synchronized Topic acquireTopic(String serverName, String topicName) {
+        Topic topic = getTopic(serverName, topicName);
+        topic.handleCount++;
+        return topic;
+    }
+
+    // Keep the Topic until the given Publisher is garbage collected.
+    private static <T> Publisher<T> registerHandle(Topic topic, Publisher<T> publisher) {
+        cleaner.register(publisher, () -> releaseTopic(topic));
+        return publisher;
+    }
+
+    private static synchronized void releaseTopic(Topic topic) {
+        topic.handleCount--;
+        removeIfUnused(topic);
+    }
+
+    // Must be called while holding the MessagePasser lock.
+    private static void removeIfUnused(Route route) {
+        if (
+                route.receiver == null && route.responder == null
+                && route.handleCount == 0)
+        {
+            routes.remove(route.key, route);
         }
+    }
 
-        if (!map.get(serverName).containsKey(moduleName)) {
-            map.get(serverName).put(moduleName, new HashMap<>());
+    // Must be called while holding the MessagePasser lock.
+    private static void removeIfUnused(Topic topic) {
+        if (topic.subscriptions.isEmpty() && topic.handleCount == 0) {
+            topics.remove(topic.key, topic);
         }
     }
 
     static synchronized <T> Receiver<T> createReceiver(
             String serverName, String moduleName, String channel,
-            Class<T> cls, Consumer<T> handler)
+            Class<T> cls, Consumer<T> handler, int queueCapacity)
     {
-        Receiver<T> receiver = new Receiver<>(cls, handler);
+        Route route = getRoute(serverName, moduleName, channel);
+        Receiver<T> receiver = new Receiver<>(
+                cls, handler, queueCapacity, false, route.metrics,
+                "channel `" + channel + "` of `" + moduleName + "`");
 
-        createMappingFor(receivers, serverName, moduleName);
-        receivers.get(serverName).get(moduleName).put(channel, receiver);
+        Receiver<?> replaced = route.receiver;
+        route.receiver = receiver;
+
+        if (replaced != null) {
+            replaced.close();
+        }
 
         return receiver;
     }
 
-    static synchronized Receiver<?> getReceiver(
-            String serverName, String moduleName, String channel)
+    static synchronized <Q, R> Responder<Q, R> createResponder(
+            String serverName, String moduleName, String channel,
+            Class<Q> cls)
+    {
+        Responder<Q, R> responder = new Responder<>(cls);
+
+        Route route = getRoute(serverName, moduleName, channel);
+        Responder<?, ?> replaced = route.responder;
+        route.responder = responder;
+
+        if (replaced != null) {
+            replaced.close();
+        }
+
+        return responder;
+    }
+
+    static synchronized <T> Receiver<T> createSubscription(
+            String serverName, String moduleName, String topicName,
+            Class<T> cls, int queueCapacity, boolean dropOldest)
     {
-        return Optional.ofNullable(receivers.get(serverName))
-            .map(m -> m.get(moduleName))
-            .map(m -> m.get(channel))
-            .orElse(null);
+        Topic topic = getTopic(serverName, topicName);
+        ChannelMetrics metrics = topic.metrics.computeIfAbsent(
+                moduleName, name -> new ChannelMetrics());
+
+        Receiver<T> receiver = new Receiver<>(
+                cls, null, queueCapacity, dropOldest, metrics,
+                "topic `" + topicName + "` for `" + moduleName + "`");
+
+        Receiver<?> replaced = topic.subscriptions.put(moduleName, receiver);
+        topic.updateSubscribers();
+
+        if (replaced != null) {
+            replaced.close();
+        }
+
+        return receiver;
+    }
+
+    static void setAcceptedServers(
+            String serverName, Collection<String> senderServerNames)
+    {
+        acceptedServers.put(serverName, Set.copyOf(senderServerNames));
+    }
+
+    static boolean acceptsMessagesFrom(
+            String serverName, String senderServerName)
+    {
+        if (serverName.equals(senderServerName)) {
+            return true;
+        }
+
+        Set<String> accepted = acceptedServers.get(serverName);
+        return accepted != null
+            && (accepted.contains(senderServerName) || accepted.contains(ANY_SERVER));
     }
 
     static synchronized void removeServer(String serverName) {
-        receivers.remove(serverName);
+        acceptedServers.remove(serverName);
+
+        // Modules of other servers may still hold Senders for this server, so
+        // the routes of those Senders are kept, and they reach its modules
+        // again if the server is added back. Its own Publishers may likewise
+        // outlive it, so topics are only removed once they are unused.
+        for (Route route: routes.values()) {
+            if (route.key.serverName().equals(serverName)) {
+                closeRoute(route);
+                removeIfUnused(route);
+            }
+        }
+
+        for (Topic topic: topics.values()) {
+            if (topic.key.serverName().equals(serverName)) {
+                topic.subscriptions.values().forEach(Receiver::close);
+                topic.subscriptions.clear();
+                topic.updateSubscribers();
+                removeIfUnused(topic);
+            }
+        }
     }
 
     static synchronized void removeModule(
             String serverName, String moduleName)
     {
-        Optional.ofNullable(receivers.get(serverName))
-            .ifPresent(m -> m.remove(moduleName));
+        // Routes to the module are kept, even if no Sender uses them, so that
+        // existing Senders reach the module's Receivers again and its
+        // metrics are kept if it is reloaded. They are removed along with
+        // the server, or once their last Sender is garbage collected.
+        for (Route route: routes.values()) {
+            if (
+                    route.key.serverName().equals(serverName)
+                    && route.key.moduleName().equals(moduleName))
+            {
+                closeRoute(route);
+            }
+        }
+
+        // Topics are removed once no module subscribes to them and no
+        // Publisher uses them, so topics with dynamic names don't pile up.
+        for (Topic topic: topics.values()) {
+            if (topic.key.serverName().equals(serverName)) {
+                Receiver<?> subscription = topic.subscriptions.remove(moduleName);
+
+                if (subscription != null) {
+                    topic.updateSubscribers();
+                    subscription.close();
+                    removeIfUnused(topic);
+                }
+            }
+        }
+    }
+
+    private static void closeRoute(Route route) {
+        Receiver<?> receiver = route.receiver;
+        route.receiver = null;
+
+        if (receiver != null) {
+            receiver.close();
+        }
+
+        Responder<?, ?> responder = route.responder;
+        route.responder = null;
+
+        if (responder != null) {
+            responder.close();
+        }
+    }
+
+    static List<MessagePassing.ChannelStats> getChannelStats(String serverName) {
+        List<MessagePassing.ChannelStats> stats = new ArrayList<>();
+
+        for (Route route: routes.values()) {
+            if (route.key.serverName().equals(serverName)) {
+                stats.add(route.metrics.snapshot(
+                            route.key.moduleName(), route.key.channel()));
+            }
+        }
+
+        return stats;
     }
 
-    static synchronized <T> Sender<T> createSender(
+    static MessagePassing.ChannelStats getChannelStats(
             String serverName, String moduleName, String channel)
     {
-        return new Sender<>(serverName, moduleName, channel);
+        Route route = routes.get(new RouteKey(serverName, moduleName, channel));
+
+        if (route != null) {
+            return route.metrics.snapshot(moduleName, channel);
+        } else {
+            return new ChannelMetrics().snapshot(moduleName, channel);
+        }
+    }
+
+    static List<MessagePassing.ChannelStats> getTopicStats(
+            String serverName, String topicName)
+    {
+        List<MessagePassing.ChannelStats> stats = new ArrayList<>();
+        Topic topic = topics.get(new TopicKey(serverName, topicName));
+
+        if (topic != null) {
+            topic.metrics.forEach((moduleName, metrics) ->
+                    stats.add(metrics.snapshot(moduleName, topicName)));
+        }
+
+        return stats;
+    }
+
+    static <T> Sender<T> createSender(
+            String senderServerName, String serverName, String moduleName,
+            String channel)
+    {
+        Route route = acquireRoute(serverName, moduleName, channel);
+        return registerHandle(route, new Sender<>(route, senderServerName));
+    }
+
+    static <Q, R> Requester<Q, R> createRequester(
+            String serverName, String moduleName, String channel,
+            Class<R> cls, int maxInFlight)
+    {
+        Route route = acquireRoute(serverName, moduleName, channel);
+        return registerHandle(route, new Requester<>(route, cls, maxInFlight));
     }
 
     static Coordinator createCoordinator(String serverName, String moduleName) {
@@ -84,7 +442,14 @@ final class MessagePasser {
         }
 
         public <T> Sender<T> getSender(String moduleName, String channel) {
-            return MessagePasser.createSender(serverName, moduleName, channel);
+            return getSender(serverName, moduleName, channel);
+        }
+
+        public <T> Sender<T> getSender(
+                String serverName, String moduleName, String channel)
+        {
+            return MessagePasser.createSender(
+                    this.serverName, serverName, moduleName, channel);
         }
 
         public <T> Sender<T> getSender(String moduleName) {
@@ -94,7 +459,7 @@ final class MessagePasser {
         public <T> Receiver<T> getReceiver(
                 String channel, Class<T> cls, Consumer<T> handler)
         {
-            return MessagePasser.createReceiver(serverName, moduleName, channel, cls, handler);
+            return MessagePasser.createReceiver(serverName, moduleName, channel, cls, handler, 0);
         }
 
         public <T> Receiver<T> getReceiver(Class<T> cls, Consumer<T> handler) {
@@ -102,82 +467,633 @@ final class MessagePasser {
         }
 
         public <T> Receiver<T> getReceiver(String channel, Class<T> cls) {
-            return MessagePasser.createReceiver(serverName, moduleName, channel, cls, null);
+            return MessagePasser.createReceiver(serverName, moduleName, channel, cls, null, 0);
         }
 
         public <T> Receiver<T> getReceiver(Class<T> cls) {
             return getReceiver("", cls, null);
         }
+
+        public <T> Receiver<T> getQueuedReceiver(
+                String channel, Class<T> cls, int queueCapacity)
+        {
+            if (queueCapacity < 1) {
+                throw new IllegalArgumentException("Queue capacity must be at least 1");
+            }
+
+            return MessagePasser.createReceiver(serverName, moduleName, channel, cls, null, queueCapacity);
+        }
+
+        public <T> Receiver<T> getQueuedReceiver(Class<T> cls, int queueCapacity) {
+            return getQueuedReceiver("", cls, queueCapacity);
+        }
+
+        public List<MessagePassing.ChannelStats> getChannelStats() {
+            return MessagePasser.getChannelStats(serverName);
+        }
+
+        public MessagePassing.ChannelStats getChannelStats(
+                String moduleName, String channel)
+        {
+            return MessagePasser.getChannelStats(serverName, moduleName, channel);
+        }
+
+        public List<MessagePassing.ChannelStats> getTopicStats(String topic) {
+            return MessagePasser.getTopicStats(serverName, topic);
+        }
+
+        public <T> Publisher<T> getPublisher(String topic) {
+            Topic publisherTopic = acquireTopic(serverName, topic);
+            return registerHandle(publisherTopic, new Publisher<>(publisherTopic));
+        }
+
+        public <T> Receiver<T> subscribe(
+                String topic, Class<T> cls, int queueCapacity,
+                MessagePassing.OverflowPolicy overflowPolicy)
+        {
+            if (queueCapacity < 1) {
+                throw new IllegalArgumentException("Queue capacity must be at least 1");
+            }
+
+            boolean dropOldest =
+                overflowPolicy == MessagePassing.OverflowPolicy.DROP_OLDEST;
+
+            return MessagePasser.createSubscription(
+                    serverName, moduleName, topic, cls, queueCapacity,
+                    dropOldest);
+        }
+
+        public <Q, R> Requester<Q, R> getRequester(
+                String moduleName, String channel, Class<R> cls,
+                int maxInFlight)
+        {
+            if (maxInFlight < 1) {
+                throw new IllegalArgumentException("Maximum number of requests in flight must be at least 1");
+            }
+
+            return MessagePasser.createRequester(
+                    serverName, moduleName, channel, cls, maxInFlight);
+        }
+
+        public <Q, R> Requester<Q, R> getRequester(
+                String moduleName, Class<R> cls, int maxInFlight)
+        {
+            return getRequester(moduleName, "", cls, maxInFlight);
+        }
+
+        public <Q, R> Responder<Q, R> getResponder(String channel, Class<Q> cls) {
+            return MessagePasser.createResponder(serverName, moduleName, channel, cls);
+        }
+
+        public <Q, R> Responder<Q, R> getResponder(Class<Q> cls) {
+            return getResponder("", cls);
+        }
     }
 
     static class Sender<T> implements MessagePassing.Sender<T> {
 
-        private final String serverName;
-        private final String moduleName;
-        private final String channel;
+        private final Route route;
 
-        public Sender(String serverName, String moduleName, String channel) {
-            this.serverName = serverName;
-            this.moduleName = moduleName;
-            this.channel = channel;
+        // The name of the server of the module which owns this Sender, or
+        // null if the Sender's route leads to the same server.
+        private final String crossServerName;
+
+        public Sender(Route route, String senderServerName) {
+            this.route = route;
+
+            if (route.key.serverName().equals(senderServerName)) {
+                crossServerName = null;
+            } else {
+                crossServerName = senderServerName;
+            }
+        }
+
+        private boolean isPermitted() {
+            return crossServerName == null
+                || acceptsMessagesFrom(route.key.serverName(), crossServerName);
         }
 
         public boolean send(T message) {
-            Receiver<?> receiver = MessagePasser.getReceiver(
-                    serverName, moduleName, channel);
+            if (!isPermitted()) {
+                return false;
+            }
+
+            Receiver<?> receiver = route.getReceiver();
+            route.metrics.recordSent(1);
 
             if (receiver != null) {
                 return receiver.handle(message);
             } else {
+                route.metrics.recordMissingReceiver(1);
                 return false;
             }
         }
+
+        public int sendAll(Collection<? extends T> messages) {
+            if (!isPermitted()) {
+                return 0;
+            }
+
+            Receiver<?> receiver = route.getReceiver();
+            route.metrics.recordSent(messages.size());
+
+            if (receiver != null) {
+                return receiver.handleAll(messages);
+            } else {
+                route.metrics.recordMissingReceiver(messages.size());
+                return 0;
+            }
+        }
+    }
+
+    static class Publisher<T> implements MessagePassing.Publisher<T> {
+
+        private final Topic topic;
+
+        public Publisher(Topic topic) {
+            this.topic = topic;
+        }
+
+        public int publish(T message) {
+            Receiver<?>[] subscribers = topic.getSubscribers();
+
+            // Subscribers which expect the same class share one conversion
+            // of the message. There are rarely more than a few subscribers,
+            // so earlier conversions are simply searched in order.
+            Class<?>[] classes = new Class<?>[subscribers.length];
+            Object[] converted = new Object[subscribers.length];
+            int conversionCount = 0;
+
+            int published = 0;
+
+            for (Receiver<?> subscriber: subscribers) {
+                Class<?> cls = subscriber.getMessageClass();
+                subscriber.metrics.recordSent(1);
+
+                int i = 0;
+                while (i < conversionCount && classes[i] != cls) {
+                    i++;
+                }
+
+                if (i == conversionCount) {
+                    classes[i] = cls;
+                    try {
+                        converted[i] = ClassConverter.convert(message, cls);
+                    } catch (Exception e) {
+                        // Remember that the conversion failed, so it isn't
+                        // attempted again for other subscribers.
+                        converted[i] = FAILED_CONVERSION;
+                    }
+                    conversionCount++;
+                }
+
+                if (converted[i] == FAILED_CONVERSION) {
+                    subscriber.metrics.recordConversionFailure(1);
+                } else if (subscriber.handleConverted(converted[i])) {
+                    published++;
+                }
+            }
+
+            return published;
+        }
     }
 
+    private static final Object FAILED_CONVERSION = new Object();
+
     static class Receiver<T> implements MessagePassing.Receiver<T> {
 
-        private Consumer<T> handler;
+        private volatile Consumer<T> handler;
+        private volatile Consumer<List<T>> batchHandler;
         private final Class<T> cls;
-        private final ReadWriteLock rwLock;
 
-        public Receiver(Class<T> cls, Consumer<T> handler) {
+        // Messages waiting to be handled, or null if messages are handled
+        // directly on the Sender's thread.
+        private final BlockingQueue<T> mailbox;
+        private final AtomicBoolean isDraining;
+        private volatile boolean isClosed;
+
+        // Whether the oldest queued message is dropped to make room for a
+        // new one when the queue is full, instead of rejecting the new one.
+        private final boolean dropOldest;
+
+        private final ChannelMetrics metrics;
+
+        // Names the channel or topic of this Receiver in log messages.
+        private final String description;
+
+        public Receiver(
+                Class<T> cls, Consumer<T> handler, int queueCapacity,
+                boolean dropOldest, ChannelMetrics metrics, String description)
+        {
             this.cls = cls;
             this.handler = handler;
-            rwLock = new ReentrantReadWriteLock();
+            this.dropOldest = dropOldest;
+            this.metrics = metrics;
+            this.description = description;
+
+            if (queueCapacity > 0) {
+                mailbox = new ArrayBlockingQueue<>(queueCapacity);
+            } else {
+                mailbox = null;
+            }
+            isDraining = new AtomicBoolean(false);
         }
 
         public void setHandler(Consumer<T> handler) {
-            Lock lock = rwLock.writeLock();
-            lock.lock();
-
             this.handler = handler;
+        }
 
-            lock.unlock();
+        public void setBatchHandler(Consumer<List<T>> batchHandler) {
+            this.batchHandler = batchHandler;
+        }
+
+        private boolean hasHandler() {
+            return handler != null || batchHandler != null;
         }
 
         private static <M> M convertMessage(Object message, Class<M> cls) throws Exception {
             return ClassConverter.convert(message, cls);
         }
 
+        Class<T> getMessageClass() {
+            return cls;
+        }
+
         public boolean handle(Object messageO) {
+            if (isClosed) {
+                return false;
+            }
+
             T message;
             try {
                 message = convertMessage(messageO, cls);
             } catch (Exception e) {
+                metrics.recordConversionFailure(1);
+                return false;
+            }
+
+            return handleConverted(message);
+        }
+
+        // Handle a message which was already converted into this Receiver's
+        // message class.
+        @SuppressWarnings("unchecked")
+        boolean handleConverted(Object messageO) {
+            if (isClosed) {
+                return false;
+            }
+
+            T message = (T) messageO;
+
+            if (mailbox == null) {
+                return deliver(message);
+            } else if (!hasHandler()) {
+                metrics.recordMissingReceiver(1);
                 return false;
+            } else if (enqueue(message)) {
+                scheduleDrain();
+                return true;
+            } else {
+                return false;
+            }
+        }
+
+        private boolean enqueue(T message) {
+            while (!mailbox.offer(message)) {
+                // Dropping the oldest message counts as a rejection as well.
+                metrics.recordQueueRejection(1);
+
+                if (!dropOldest) {
+                    return false;
+                }
+
+                mailbox.poll();
+            }
+
+            return true;
+        }
+
+        public int handleAll(Collection<?> messagesO) {
+            if (isClosed) {
+                return 0;
+            }
+
+            List<T> messages;
+            try {
+                messages = ClassConverter.convertAll(messagesO, cls);
+            } catch (Exception e) {
+                metrics.recordConversionFailure(messagesO.size());
+                return 0;
             }
 
-            Lock lock = rwLock.readLock();
-            lock.lock();
+            if (mailbox == null) {
+                return deliverAll(messages);
+            } else if (!hasHandler()) {
+                metrics.recordMissingReceiver(messages.size());
+                return 0;
+            }
+
+            // Each message goes through the same overflow policy as a message
+            // sent on its own.
+            int queued = 0;
+            for (T message: messages) {
+                if (enqueue(message)) {
+                    queued++;
+                }
+            }
+
+            if (queued > 0) {
+                scheduleDrain();
+            }
+
+            return queued;
+        }
+
+        private boolean deliver(T message) {
+            Consumer<T> handler = this.handler;
+            Consumer<List<T>> batchHandler = this.batchHandler;
+
+            long start = System.nanoTime();
 
             if (handler != null) {
                 handler.accept(message);
-                lock.unlock();
-                return true;
+            } else if (batchHandler != null) {
+                batchHandler.accept(Collections.singletonList(message));
             } else {
-                lock.unlock();
+                metrics.recordMissingReceiver(1);
                 return false;
             }
+
+            metrics.recordDelivered(1, System.nanoTime() - start);
+            return true;
+        }
+
+        private int deliverAll(List<T> messages) {
+            Consumer<T> handler = this.handler;
+            Consumer<List<T>> batchHandler = this.batchHandler;
+
+            if (batchHandler != null) {
+                long start = System.nanoTime();
+                batchHandler.accept(Collections.unmodifiableList(messages));
+                metrics.recordDelivered(messages.size(), System.nanoTime() - start);
+            } else if (handler != null) {
+                for (T message: messages) {
+                    long start = System.nanoTime();
+                    handler.accept(message);
+                    metrics.recordDelivered(1, System.nanoTime() - start);
+                }
+            } else {
+                metrics.recordMissingReceiver(messages.size());
+                return 0;
+            }
+
+            return messages.size();
+        }
+
+        private void scheduleDrain() {
+            if (isDraining.compareAndSet(false, true)) {
+                handlerExecutor.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            List<T> messages = new ArrayList<>();
+
+            while (!isClosed && mailbox.drainTo(messages) > 0) {
+                // Everything queued so far is given to the batch handler at
+                // once, if there is one.
+                if (batchHandler != null) {
+                    try {
+                        deliverAll(messages);
+                    } catch (RuntimeException e) {
+                        handlerFailed(messages.size(), e);
+                    }
+                } else {
+                    for (T message: messages) {
+                        try {
+                            deliver(message);
+                        } catch (RuntimeException e) {
+                            handlerFailed(1, e);
+                        }
+                    }
+                }
+
+                // The batch handler may keep the List it was given, so the
+                // next batch gets a new one.
+                messages = new ArrayList<>();
+            }
+
+            isDraining.set(false);
+
+            // A message might have been queued after the last poll, but
+            // before the flag was cleared.
+            if (!isClosed && !mailbox.isEmpty()) {
+                scheduleDrain();
+            }
+        }
+
+        // There's no Sender waiting to be given the exception, so it is
+        // logged and counted instead.
+        private void handlerFailed(int messageCount, RuntimeException e) {
+            metrics.recordHandlerFailure(messageCount);
+            logger.log(Level.WARNING, "Handler for " + description + " threw:", e);
+        }
+
+        // Stop handling messages once this Receiver has been replaced or its
+        // module has been removed.
+        void close() {
+            isClosed = true;
+
+            if (mailbox != null) {
+                mailbox.clear();
+            }
+        }
+    }
+
+    static class Requester<Q, R> implements MessagePassing.Requester<Q, R> {
+
+        private final Route route;
+        private final Class<R> cls;
+        private final Semaphore permits;
+
+        public Requester(Route route, Class<R> cls, int maxInFlight) {
+            this.route = route;
+            this.cls = cls;
+            permits = new Semaphore(maxInFlight);
+        }
+
+        public CompletableFuture<R> request(Q message) {
+            PendingRequest request = send(message);
+            return cancelOnFailure(request, request.reply.thenApply(this::convertReply));
+        }
+
+        public CompletableFuture<R> request(
+                Q message, long timeout, TimeUnit unit)
+        {
+            PendingRequest request = send(message);
+            return cancelOnFailure(
+                    request,
+                    request.reply.thenApply(this::convertReply).orTimeout(timeout, unit));
+        }
+
+        // The permit is held until the Responder's handler has returned, not
+        // just until the reply future completes, so that handlers which time
+        // out still count against the limit while they run.
+        private PendingRequest send(Q message) {
+            Responder<?, ?> responder = route.getResponder();
+
+            if (responder == null) {
+                return PendingRequest.failed(
+                        new IllegalStateException("No Responder for request"));
+            } else if (!permits.tryAcquire()) {
+                return PendingRequest.failed(
+                        new RejectedExecutionException("Too many requests in flight"));
+            }
+
+            return responder.respond(message, permits::release);
+        }
+
+        // If the reply times out or is cancelled by the Requester, the handler
+        // is cancelled as well, rather than left running for nobody.
+        private static <T> CompletableFuture<T> cancelOnFailure(
+                PendingRequest request, CompletableFuture<T> reply)
+        {
+            reply.whenComplete((r, e) -> {
+                if (e != null) {
+                    request.cancel();
+                }
+            });
+
+            return reply;
+        }
+
+        private R convertReply(Object reply) {
+            try {
+                return ClassConverter.convert(reply, cls);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }
+    }
+
+    static class Responder<Q, R> implements MessagePassing.Responder<Q, R> {
+
+        private volatile Function<Q, R> handler;
+        private final Class<Q> cls;
+        private volatile boolean isClosed;
+
+        public Responder(Class<Q> cls) {
+            this.cls = cls;
+        }
+
+        public void setHandler(Function<Q, R> handler) {
+            this.handler = handler;
+        }
+
+        // Handle a request on a separate thread, so that the Requester is
+        // never blocked by the handler. The reply is not converted here,
+        // since only the Requester knows which class it expects. `onFinished`
+        // is run once the handler has returned, or once it's clear that it
+        // won't run.
+        PendingRequest respond(Object messageO, Runnable onFinished) {
+            Function<Q, R> handler = this.handler;
+
+            if (isClosed || handler == null) {
+                onFinished.run();
+                return PendingRequest.failed(
+                        new IllegalStateException("Responder is not handling requests"));
+            }
+
+            Q message;
+            try {
+                message = ClassConverter.convert(messageO, cls);
+            } catch (Exception e) {
+                onFinished.run();
+                return PendingRequest.failed(e);
+            }
+
+            PendingRequest request = new PendingRequest(
+                    () -> handler.apply(message), onFinished);
+            responderExecutor.execute(request);
+
+            return request;
+        }
+
+        void close() {
+            isClosed = true;
+        }
+    }
+
+    // A request waiting for, or being handled by, a Responder's handler.
+    private static final class PendingRequest implements Runnable {
+
+        private final CompletableFuture<Object> reply = new CompletableFuture<>();
+        private final Supplier<Object> handler;
+        private final Runnable onFinished;
+
+        // Guarded by this PendingRequest. `thread` is the thread running the
+        // handler while `isStarted && !isFinished`.
+        private boolean isStarted;
+        private boolean isFinished;
+        private Thread thread;
+
+        private PendingRequest(Supplier<Object> handler, Runnable onFinished) {
+            this.handler = handler;
+            this.onFinished = onFinished;
+        }
+
+        private static PendingRequest failed(Exception e) {
+            PendingRequest request = new PendingRequest(null, null);
+            request.isStarted = true;
+            request.isFinished = true;
+            request.reply.completeExceptionally(e);
+            return request;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (isStarted) {
+                    // Cancelled before it started.
+                    return;
+                }
+                isStarted = true;
+                thread = Thread.currentThread();
+            }
+
+            try {
+                reply.complete(handler.get());
+            } catch (Throwable e) {
+                reply.completeExceptionally(e);
+            } finally {
+                synchronized (this) {
+                    isFinished = true;
+                    thread = null;
+                    // Don't let an interrupt meant for this handler reach the
+                    // next task run by the thread.
+                    Thread.interrupted();
+                }
+                onFinished.run();
+            }
+        }
+
+        // A handler which hasn't started yet will never run, and a handler
+        // which is running is interrupted. Handlers which ignore interrupts
+        // keep running until they return.
+        private void cancel() {
+            synchronized (this) {
+                if (isStarted) {
+                    if (!isFinished) {
+                        thread.interrupt();
+                    }
+                    return;
+                }
+                isStarted = true;
+                isFinished = true;
+            }
+
+            reply.cancel(false);
+            onFinished.run();
         }
     }
 }
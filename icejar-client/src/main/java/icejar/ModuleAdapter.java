@@ -0,0 +1,137 @@
+package icejar;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.zeroc.Ice.*;
+
+
+// A single Module's view of a Client's ObjectAdapter.
+//
+// Servants added through the view are recorded, so that when the Module is
+// unloaded its servants (and therefore its callbacks) can be removed from the
+// adapter without destroying the adapter, which is shared by every Module of
+// the Client. Once closed, the view can't be used to add servants any more,
+// even by a Module whose setup is still running in the background.
+final class ModuleAdapter implements InvocationHandler {
+    private final ObjectAdapter adapter;
+    private final ObjectAdapter view;
+
+    private final Set<Identity> identities = ConcurrentHashMap.newKeySet();
+    private final Set<String> defaultServantCategories = ConcurrentHashMap.newKeySet();
+    private final Set<String> servantLocatorCategories = ConcurrentHashMap.newKeySet();
+    private boolean isClosed;
+
+    ModuleAdapter(ObjectAdapter adapter) {
+        this.adapter = adapter;
+        this.view = (ObjectAdapter) Proxy.newProxyInstance(
+                ObjectAdapter.class.getClassLoader(),
+                new Class<?>[] { ObjectAdapter.class },
+                this);
+    }
+
+    ObjectAdapter getView() {
+        return view;
+    }
+
+    // Remove every servant which was added through the view and stop any more
+    // from being added.
+    synchronized void close() {
+        isClosed = true;
+        removeServants();
+    }
+
+    private void removeServants() {
+        for (Identity identity: identities) {
+            try {
+                adapter.removeAllFacets(identity);
+            } catch (NotRegisteredException | ObjectAdapterDeactivatedException ignored) {}
+        }
+        identities.clear();
+
+        for (String category: defaultServantCategories) {
+            try {
+                adapter.removeDefaultServant(category);
+            } catch (NotRegisteredException | ObjectAdapterDeactivatedException ignored) {}
+        }
+        defaultServantCategories.clear();
+
+        for (String category: servantLocatorCategories) {
+            try {
+                adapter.removeServantLocator(category);
+            } catch (NotRegisteredException | ObjectAdapterDeactivatedException ignored) {}
+        }
+        servantLocatorCategories.clear();
+    }
+
+    @Override
+    public java.lang.Object invoke(
+            java.lang.Object proxy, Method method, java.lang.Object[] args)
+        throws Throwable
+    {
+        String name = method.getName();
+
+        switch (name) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return "Module view of " + adapter.getName();
+            case "activate":
+            case "hold":
+            case "waitForHold":
+            case "waitForDeactivate":
+                // The state of the adapter is managed by the Client.
+                return null;
+            case "deactivate":
+            case "destroy":
+                // Only the Module's own servants go away.
+                close();
+                return null;
+            default:
+                break;
+        }
+
+        synchronized (this) {
+            if (isClosed && name.startsWith("add")) {
+                throw new ObjectAdapterDeactivatedException();
+            }
+
+            return invokeAdapter(method, args);
+        }
+    }
+
+    private java.lang.Object invokeAdapter(Method method, java.lang.Object[] args)
+        throws Throwable
+    {
+        String name = method.getName();
+
+        java.lang.Object result;
+        try {
+            result = method.invoke(adapter, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+
+        if (name.startsWith("add") && result instanceof ObjectPrx prx) {
+            identities.add(prx.ice_getIdentity());
+        } else if (name.equals("addDefaultServant")) {
+            defaultServantCategories.add((String) args[1]);
+        } else if (name.equals("addServantLocator")) {
+            servantLocatorCategories.add((String) args[1]);
+        } else if (name.equals("remove") || name.equals("removeAllFacets")) {
+            identities.remove((Identity) args[0]);
+        } else if (name.equals("removeDefaultServant")) {
+            defaultServantCategories.remove((String) args[0]);
+        } else if (name.equals("removeServantLocator")) {
+            servantLocatorCategories.remove((String) args[0]);
+        }
+
+        return result;
+    }
+}
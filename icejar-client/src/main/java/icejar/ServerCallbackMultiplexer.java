@@ -0,0 +1,262 @@
+package icejar;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.zeroc.Ice.*;
+import MumbleServer.*;
+
+
+// A single ServerCallback which a Client registers with the Mumble server on
+// behalf of all of its modules, so that each event is sent over the network
+// and unmarshalled once, no matter how many modules want it.
+//
+// Modules are given a view of the virtual server whose `addCallback` and
+// `removeCallback` methods add and remove local callbacks to and from the
+// multiplexer instead of the Mumble server. Callbacks which are not servants
+// of the Client's adapter are passed on to the Mumble server as before.
+//
+// The Client itself may also add listeners (such as the updater of its
+// ServerState), which are called before the servants of modules.
+final class ServerCallbackMultiplexer implements ServerCallback {
+    private final Logger logger;
+    private final ObjectAdapter adapter;
+    private final ObjectAdapter clientAdapter;
+    private final ServerPrx server;
+    private final ServerPrx view;
+
+    // Identities of the servants events are passed to. Servants are looked
+    // up for each event, so that servants removed from the adapter (e.g.
+    // when their module is unloaded) stop receiving events.
+    private final List<Identity> targets = new CopyOnWriteArrayList<>();
+    private final List<ServerCallback> listeners = new CopyOnWriteArrayList<>();
+    private ServerCallbackPrx proxy;
+
+    // `adapter` is used to find the servants of modules, and `clientAdapter`
+    // (a view of the same adapter) to register the multiplexer itself.
+    ServerCallbackMultiplexer(
+            Logger logger, ObjectAdapter adapter, ObjectAdapter clientAdapter,
+            ServerPrx server)
+    {
+        this.logger = logger;
+        this.adapter = adapter;
+        this.clientAdapter = clientAdapter;
+        this.server = server;
+        this.view = (ServerPrx) Proxy.newProxyInstance(
+                ServerPrx.class.getClassLoader(),
+                new Class<?>[] { ServerPrx.class },
+                new ServerHandler());
+    }
+
+    // Get the view of the virtual server which is passed to modules.
+    ServerPrx getServer() {
+        return view;
+    }
+
+    private ServerCallback findTarget(ServerCallbackPrx callbackPrx) {
+        if (callbackPrx == null) {
+            return null;
+        }
+
+        java.lang.Object servant = adapter.find(callbackPrx.ice_getIdentity());
+        if (servant instanceof ServerCallback callback) {
+            return callback;
+        } else {
+            return null;
+        }
+    }
+
+    // The multiplexer is only registered with the Mumble server once something
+    // actually wants events. Must be called while synchronized on this
+    // ServerCallbackMultiplexer.
+    private void register() {
+        if (proxy == null) {
+            ServerCallbackPrx proxy = IceHelper.getServerCallback(clientAdapter, this);
+            server.addCallback(proxy);
+            this.proxy = proxy;
+        }
+    }
+
+    // Register the multiplexer with the Mumble server again, e.g. because the
+    // server dropped its callbacks when the virtual server was stopped.
+    synchronized CompletableFuture<Void> reregister() {
+        if (proxy != null) {
+            return server.addCallbackAsync(proxy);
+        } else {
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    // Add a callback which isn't a servant of the adapter.
+    synchronized void addListener(ServerCallback listener) {
+        register();
+        listeners.add(listener);
+    }
+
+    private synchronized void addTarget(ServerCallbackPrx callbackPrx) {
+        register();
+
+        Identity identity = callbackPrx.ice_getIdentity();
+        if (!targets.contains(identity)) {
+            targets.add(identity);
+        }
+    }
+
+    // Stop receiving events from the Mumble server. The connection may
+    // already be gone, so this doesn't wait for a reply.
+    synchronized void unregister() {
+        if (proxy != null) {
+            server.removeCallbackAsync(proxy);
+            proxy = null;
+        }
+
+        targets.clear();
+        listeners.clear();
+    }
+
+    private void removeTarget(ServerCallbackPrx callbackPrx) {
+        targets.remove(callbackPrx.ice_getIdentity());
+    }
+
+    private void forEachTarget(Consumer<ServerCallback> event) {
+        for (ServerCallback listener: listeners) {
+            try {
+                event.accept(listener);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Server callback threw:", e);
+            }
+        }
+
+        for (Identity identity: targets) {
+            java.lang.Object servant;
+            try {
+                servant = adapter.find(identity);
+            } catch (ObjectAdapterDeactivatedException e) {
+                return;
+            }
+
+            if (servant instanceof ServerCallback callback) {
+                try {
+                    event.accept(callback);
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Server callback threw:", e);
+                }
+            } else {
+                targets.remove(identity);
+            }
+        }
+    }
+
+    @Override
+    public void userConnected(User state, Current current) {
+        forEachTarget(callback -> callback.userConnected(state, current));
+    }
+
+    @Override
+    public void userDisconnected(User state, Current current) {
+        forEachTarget(callback -> callback.userDisconnected(state, current));
+    }
+
+    @Override
+    public void userStateChanged(User state, Current current) {
+        forEachTarget(callback -> callback.userStateChanged(state, current));
+    }
+
+    @Override
+    public void userTextMessage(User state, TextMessage message, Current current) {
+        forEachTarget(callback -> callback.userTextMessage(state, message, current));
+    }
+
+    @Override
+    public void channelCreated(Channel state, Current current) {
+        forEachTarget(callback -> callback.channelCreated(state, current));
+    }
+
+    @Override
+    public void channelRemoved(Channel state, Current current) {
+        forEachTarget(callback -> callback.channelRemoved(state, current));
+    }
+
+    @Override
+    public void channelStateChanged(Channel state, Current current) {
+        forEachTarget(callback -> callback.channelStateChanged(state, current));
+    }
+
+    private final class ServerHandler implements InvocationHandler {
+        @Override
+        public java.lang.Object invoke(
+                java.lang.Object proxy, Method method, java.lang.Object[] args)
+            throws Throwable
+        {
+            String name = method.getName();
+
+            // The view is used as a key by modules and by ServerState.
+            switch (name) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    break;
+            }
+
+            if (
+                    args != null && args.length > 0
+                    && args[0] instanceof ServerCallbackPrx callbackPrx
+                    && findTarget(callbackPrx) != null)
+            {
+                boolean isAsync = name.endsWith("Async");
+
+                try {
+                    if (name.startsWith("addCallback")) {
+                        addTarget(callbackPrx);
+                    } else if (name.startsWith("removeCallback")) {
+                        removeTarget(callbackPrx);
+                    } else {
+                        return invokeServer(method, args);
+                    }
+                } catch (RuntimeException e) {
+                    if (isAsync) {
+                        return CompletableFuture.failedFuture(e);
+                    }
+                    throw e;
+                }
+
+                return isAsync ? CompletableFuture.completedFuture(null) : null;
+            }
+
+            return invokeServer(method, args);
+        }
+
+        private java.lang.Object invokeServer(Method method, java.lang.Object[] args)
+            throws Throwable
+        {
+            java.lang.Object result;
+            try {
+                result = method.invoke(server, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+
+            // Requests which change the groups of a channel make cached group
+            // members of the channel stale.
+            Integer channel = GroupMembershipCache.getChangedChannel(
+                    method.getName(), args);
+            if (channel != null) {
+                GroupMembershipCache.invalidateAfter(
+                        view, channel,
+                        result instanceof CompletableFuture<?> future ? future : null);
+            }
+
+            return result;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package icejar;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.function.BiConsumer;
+
+import com.zeroc.Ice.*;
+import MumbleServer.*;
+
+
+// Resolves the names of the virtual servers of a single Mumble server, and
+// keeps track of which of them are running.
+//
+// The names of all virtual servers are requested at once and cached until the
+// connection to the Mumble server changes. As a MetaCallback, the directory
+// also keeps the cache up to date when virtual servers start or stop.
+final class ServerDirectory implements MetaCallback {
+    private static final String SERVER_NAME_VAR = "registerName";
+
+    private final Map<String, ServerPrx> serversByName = new HashMap<>();
+    private final Map<Identity, String> namesByIdentity = new HashMap<>();
+    private boolean isLoaded;
+
+    // The IDs of running servers, or null if they haven't been loaded since
+    // the connection changed.
+    private Set<Integer> runningServerIDs;
+    private final Set<Runnable> listeners = new CopyOnWriteArraySet<>();
+    private final Set<BiConsumer<ServerPrx, Boolean>> serverListeners =
+        new CopyOnWriteArraySet<>();
+
+    // Find the virtual server with the given name, or null if there is none.
+    ServerPrx findServer(MetaPrx meta, String serverName) throws java.lang.Exception {
+        ServerPrx server;
+        boolean wasLoaded;
+        synchronized (this) {
+            server = serversByName.get(serverName);
+            wasLoaded = isLoaded;
+        }
+
+        if (
+                wasLoaded && server != null
+                && serverName.equals(server.getConf(SERVER_NAME_VAR)))
+        {
+            return server;
+        }
+
+        // A server may have been created or renamed without this directory
+        // being told, so a miss or a stale entry means the cache is reloaded.
+        load(meta);
+
+        synchronized (this) {
+            return serversByName.get(serverName);
+        }
+    }
+
+    synchronized void clear() {
+        serversByName.clear();
+        namesByIdentity.clear();
+        isLoaded = false;
+        runningServerIDs = null;
+    }
+
+    // Add a method which is called whenever the set of running servers
+    // changes. It may be called from an Ice thread.
+    void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(Runnable listener) {
+        listeners.remove(listener);
+    }
+
+    // Add a method which is called with a server and whether it is running
+    // whenever a server starts or stops. It is called from the Ice thread
+    // which dispatched the callback, so it must not block.
+    void addServerListener(BiConsumer<ServerPrx, Boolean> listener) {
+        serverListeners.add(listener);
+    }
+
+    void removeServerListener(BiConsumer<ServerPrx, Boolean> listener) {
+        serverListeners.remove(listener);
+    }
+
+    // Get the IDs of the running servers, or null if they aren't known.
+    synchronized Set<Integer> getRunningServerIDs() {
+        if (runningServerIDs == null) {
+            return null;
+        }
+
+        return new HashSet<>(runningServerIDs);
+    }
+
+    // Request the IDs of all running servers. After this, the IDs are kept up
+    // to date as long as the directory is registered as a MetaCallback.
+    void loadRunningServers(MetaPrx meta) throws java.lang.Exception {
+        ServerPrx[] servers = meta.getBootedServers();
+
+        List<CompletableFuture<Integer>> ids = new ArrayList<>(servers.length);
+        for (ServerPrx server: servers) {
+            ids.add(server.idAsync());
+        }
+
+        CompletableFuture.allOf(ids.toArray(new CompletableFuture<?>[0])).get();
+
+        synchronized (this) {
+            runningServerIDs = new HashSet<>();
+            for (CompletableFuture<Integer> id: ids) {
+                runningServerIDs.add(id.join());
+            }
+        }
+
+        notifyListeners();
+    }
+
+    private void updateRunningServer(ServerPrx server, boolean isRunning) {
+        for (BiConsumer<ServerPrx, Boolean> listener: serverListeners) {
+            listener.accept(server, isRunning);
+        }
+
+        server.idAsync().thenAccept(id -> {
+            synchronized (this) {
+                if (runningServerIDs == null) {
+                    return;
+                }
+
+                if (isRunning) {
+                    runningServerIDs.add(id);
+                } else {
+                    runningServerIDs.remove(id);
+                }
+            }
+
+            notifyListeners();
+        });
+    }
+
+    private void notifyListeners() {
+        for (Runnable listener: listeners) {
+            listener.run();
+        }
+    }
+
+    // Replies to asynchronous requests are completed on Ice's client thread
+    // pool, so this must not hold the lock while it waits for them.
+    private void load(MetaPrx meta) throws java.lang.Exception {
+        ServerPrx[] servers = meta.getAllServers();
+
+        // Requests for the names of all servers are sent without waiting for
+        // the replies to the previous ones.
+        List<CompletableFuture<String>> names = new ArrayList<>(servers.length);
+        for (ServerPrx server: servers) {
+            names.add(server.getConfAsync(SERVER_NAME_VAR));
+        }
+
+        CompletableFuture.allOf(names.toArray(new CompletableFuture<?>[0])).get();
+
+        synchronized (this) {
+            serversByName.clear();
+            namesByIdentity.clear();
+
+            for (int i = 0; i < servers.length; i++) {
+                put(servers[i], names.get(i).join());
+            }
+
+            isLoaded = true;
+        }
+    }
+
+    // Must be called while synchronized on this ServerDirectory.
+    private void put(ServerPrx server, String serverName) {
+        Identity identity = server.ice_getIdentity();
+
+        String previousName = namesByIdentity.put(identity, serverName);
+        if (previousName != null) {
+            serversByName.remove(previousName);
+        }
+
+        if (serverName != null) {
+            serversByName.put(serverName, server);
+        }
+    }
+
+    @Override
+    public void started(ServerPrx srv, Current current) {
+        // The name is requested asynchronously so that the Ice thread which
+        // dispatched the callback isn't blocked.
+        srv.getConfAsync(SERVER_NAME_VAR).thenAccept(serverName -> {
+            synchronized (this) {
+                if (isLoaded) {
+                    put(srv, serverName);
+                }
+            }
+        });
+
+        updateRunningServer(srv, true);
+    }
+
+    @Override
+    public synchronized void stopped(ServerPrx srv, Current current) {
+        String serverName = namesByIdentity.remove(srv.ice_getIdentity());
+        if (serverName != null) {
+            serversByName.remove(serverName);
+        }
+
+        updateRunningServer(srv, false);
+    }
+}
@@ -0,0 +1,129 @@
+package icejar;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that batches sent to a queued {@link MessagePasser.Receiver} go
+ * through the same overflow policy as single messages, and that each batch
+ * given to a batch handler is a List of its own.
+ */
+final class BatchSendTest {
+
+    public static void main(final String... args) throws InterruptedException {
+        rejectNewest();
+        dropOldest();
+
+        System.out.println("BatchSendTest passed");
+    }
+
+    private static void rejectNewest() throws InterruptedException {
+        final var coordinator = MessagePasser.createCoordinator("batches", "module");
+        final MessagePasser.Receiver<Integer> receiver =
+            coordinator.getQueuedReceiver("numbers", Integer.class, 2);
+        final MessagePasser.Sender<Integer> sender =
+            coordinator.getSender("module", "numbers");
+
+        final var batches = new BatchRecorder();
+        receiver.setBatchHandler(batches::handle);
+
+        check(sender.sendAll(List.of(0)) == 1, "the first batch is accepted");
+        batches.awaitStarted();
+
+        // Only two of the three messages fit in the queue.
+        check(sender.sendAll(List.of(1, 2, 3)) == 2, "messages are queued while there is room");
+        check(
+                coordinator.getChannelStats("module", "numbers").queueRejections() == 1,
+                "the message which didn't fit is counted as rejected");
+
+        batches.release();
+        batches.awaitBatches(2);
+        check(
+                batches.get().equals(List.of(List.of(0), List.of(1, 2))),
+                "the handler kept each batch as it was given, but got " + batches.get());
+    }
+
+    private static void dropOldest() throws InterruptedException {
+        final var metrics = new ChannelMetrics();
+        final var receiver = new MessagePasser.Receiver<Integer>(
+                Integer.class, null, 2, true, metrics, "numbers");
+
+        final var batches = new BatchRecorder();
+        receiver.setBatchHandler(batches::handle);
+
+        check(receiver.handle(0), "the first message is accepted");
+        batches.awaitStarted();
+
+        // The third message replaces the first one in the queue.
+        check(receiver.handleAll(List.of(1, 2, 3)) == 3, "every message of the batch is queued");
+        check(
+                metrics.snapshot("module", "numbers").queueRejections() == 1,
+                "the dropped message is counted as rejected");
+
+        batches.release();
+        batches.awaitBatches(2);
+        check(
+                batches.get().equals(List.of(List.of(0), List.of(2, 3))),
+                "the oldest message was dropped, but got " + batches.get());
+    }
+
+    // Keeps every batch it is given, and holds up the first one until it is
+    // released.
+    private static final class BatchRecorder {
+        private final List<List<Integer>> batches =
+            Collections.synchronizedList(new ArrayList<>());
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        void handle(final List<Integer> batch) {
+            batches.add(batch);
+            if (batches.size() == 1) {
+                started.countDown();
+                await(released);
+            }
+        }
+
+        void awaitStarted() {
+            await(started);
+        }
+
+        void release() {
+            released.countDown();
+        }
+
+        void awaitBatches(final int count) throws InterruptedException {
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (batches.size() < count) {
+                if (System.nanoTime() - deadline > 0) {
+                    throw new AssertionError("Timed out waiting for " + count + " batches");
+                }
+                Thread.sleep(10);
+            }
+        }
+
+        List<List<Integer>> get() {
+            synchronized (batches) {
+                return new ArrayList<>(batches);
+            }
+        }
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            if (!latch.await(10L, TimeUnit.SECONDS)) {
+                throw new AssertionError("Timed out waiting for the handler");
+            }
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void check(final boolean condition, final String expectation) {
+        if (!condition) {
+            throw new AssertionError("Expected that " + expectation);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package icejar;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks the conversion plans of {@link ClassConverter} for the cases which
+ * message passing relies on: values of the same class are passed through,
+ * arrays of primitives are shared rather than copied, and collections of
+ * equivalent records are converted element by element.
+ */
+final class ClassConverterTest {
+    static record Point(int x, int y) {}
+    static record OtherPoint(int x, int y) {}
+
+    static record Samples(String name, int[] values) {}
+    static record OtherSamples(String name, int[] values) {}
+
+    static record Shape(List<Point> points, Map<String, Point> labels) {}
+    static record OtherShape(
+            List<OtherPoint> points, Map<String, OtherPoint> labels) {}
+
+    public static void main(final String... args) throws Exception {
+        identityPassthrough();
+        primitiveArrayPassthrough();
+        collectionsOfEquivalentRecords();
+
+        System.out.println("ClassConverterTest passed");
+    }
+
+    private static void identityPassthrough() throws Exception {
+        final var point = new Point(1, 2);
+        check(ClassConverter.convert(point, Point.class) == point,
+                "a value of the expected class is returned as is");
+
+        final var points = List.of(point, new Point(3, 4));
+        final var converted = ClassConverter.convertAll(points, Point.class);
+        check(converted.get(0) == points.get(0) && converted.get(1) == points.get(1),
+                "convertAll() passes values of the expected class through");
+    }
+
+    private static void primitiveArrayPassthrough() throws Exception {
+        final var values = new int[] {1, 2, 3};
+        check(ClassConverter.convert(values, int[].class) == values,
+                "an int[] is not copied");
+
+        final var samples = new Samples("samples", values);
+        final var converted = ClassConverter.convert(samples, OtherSamples.class);
+        check(converted.values() == values,
+                "an int[] component of an equivalent record is not copied");
+        check(converted.name().equals("samples"),
+                "other components of the record are kept");
+    }
+
+    private static void collectionsOfEquivalentRecords() throws Exception {
+        final var shape = new Shape(
+                List.of(new Point(1, 2), new Point(3, 4)),
+                Map.of("origin", new Point(0, 0)));
+        final var converted = ClassConverter.convert(shape, OtherShape.class);
+
+        check(converted.points().equals(
+                    List.of(new OtherPoint(1, 2), new OtherPoint(3, 4))),
+                "the elements of a List are converted in order");
+        check(converted.labels().equals(Map.of("origin", new OtherPoint(0, 0))),
+                "the values of a Map are converted");
+    }
+
+    private static void check(final boolean condition, final String description) {
+        if (!condition) {
+            throw new AssertionError("Expected: " + description);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package icejar;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Checks that a queued {@link MessagePasser.Receiver} handles messages off of
+ * the Sender's thread, rejects messages once its queue is full, and keeps
+ * handling messages after its handler throws, counting each of these in the
+ * channel's metrics.
+ */
+final class QueuedReceiverTest {
+
+    public static void main(final String... args) throws InterruptedException {
+        // The handler below throws on purpose.
+        Logger.getLogger("icejar.messages").setLevel(Level.OFF);
+
+        final var coordinator = MessagePasser.createCoordinator("queued", "module");
+        final MessagePasser.Receiver<Integer> receiver =
+            coordinator.getQueuedReceiver("numbers", Integer.class, 2);
+        final MessagePasser.Sender<Integer> sender =
+            coordinator.getSender("module", "numbers");
+
+        final var started = new CountDownLatch(1);
+        final var release = new CountDownLatch(1);
+        final List<Integer> handled = Collections.synchronizedList(new ArrayList<>());
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+
+        receiver.setHandler(message -> {
+            threads.add(Thread.currentThread());
+            if (message == 0) {
+                started.countDown();
+                await(release);
+            } else if (message == 2) {
+                throw new IllegalStateException("Failure of message " + message);
+            }
+            handled.add(message);
+        });
+
+        // The first message holds up the handler, so the next two fill the
+        // queue and the one after that is rejected.
+        check(sender.send(0), "the first message is accepted");
+        await(started);
+        check(sender.send(1) && sender.send(2), "messages are queued while there is room");
+        check(!sender.send(3), "a message is rejected once the queue is full");
+
+        release.countDown();
+        var stats = awaitStats(coordinator, s -> s.delivered() + s.handlerFailures() == 3);
+        check(stats.sent() == 4, "every message counts as sent");
+        check(stats.queueRejections() == 1, "the rejected message is counted");
+        check(stats.handlerFailures() == 1, "the handler's exception is counted");
+        check(handled.equals(List.of(0, 1)), "the other queued messages are handled in order");
+
+        // The Receiver isn't stopped by the exception.
+        check(sender.send(4), "a message is accepted after the handler threw");
+        stats = awaitStats(coordinator, s -> s.delivered() == 3);
+        check(handled.equals(List.of(0, 1, 4)), "messages are handled after the handler threw");
+        check(!threads.contains(Thread.currentThread()), "the handler never runs on the Sender's thread");
+
+        System.out.println("QueuedReceiverTest passed");
+    }
+
+    private static MessagePassing.ChannelStats awaitStats(
+            final MessagePasser.Coordinator coordinator,
+            final Predicate<MessagePassing.ChannelStats> condition)
+        throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        var stats = coordinator.getChannelStats("module", "numbers");
+        while (!condition.test(stats)) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new AssertionError("Timed out waiting for the handler, with " + stats);
+            }
+            Thread.sleep(10);
+            stats = coordinator.getChannelStats("module", "numbers");
+        }
+        return stats;
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            if (!latch.await(10L, TimeUnit.SECONDS)) {
+                throw new AssertionError("Timed out waiting for the handler");
+            }
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void check(final boolean condition, final String expectation) {
+        if (!condition) {
+            throw new AssertionError("Expected that " + expectation);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package icejar;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Checks that requests are answered by the Responder of their channel, that a
+ * request times out if the handler is too slow, and that the handler of a
+ * timed out request is interrupted and still counts against the Requester's
+ * limit until it returns.
+ */
+final class RequestReplyTest {
+
+    public static void main(final String... args) throws Exception {
+        final var coordinator = MessagePasser.createCoordinator("requests", "module");
+        final MessagePasser.Requester<Integer, Integer> requester =
+            coordinator.getRequester("module", "double", Integer.class, 1);
+
+        checkFailure(requester.request(1), IllegalStateException.class);
+
+        final MessagePasser.Responder<Integer, Integer> responder =
+            coordinator.getResponder("double", Integer.class);
+        responder.setHandler(request -> request * 2);
+        check(requester.request(21).get(10L, TimeUnit.SECONDS) == 42, "the Responder answers");
+
+        // This handler ignores interrupts, so it keeps running after its
+        // request times out.
+        final var release = new CountDownLatch(1);
+        final var interrupted = new CountDownLatch(1);
+        responder.setHandler(request -> {
+            while (true) {
+                try {
+                    release.await();
+                    return request * 2;
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+            }
+        });
+
+        checkFailure(requester.request(1, 50L, TimeUnit.MILLISECONDS), TimeoutException.class);
+        check(interrupted.await(10L, TimeUnit.SECONDS), "the handler is interrupted once the request times out");
+        checkFailure(requester.request(2), RejectedExecutionException.class);
+
+        // The permit is given back once the handler returns.
+        release.countDown();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (true) {
+            try {
+                check(requester.request(3).get(10L, TimeUnit.SECONDS) == 6, "the Responder answers");
+                break;
+            } catch (ExecutionException e) {
+                if (!(e.getCause() instanceof RejectedExecutionException)) {
+                    throw e;
+                } else if (System.nanoTime() - deadline > 0) {
+                    throw new AssertionError("Expected the permit to be given back", e);
+                }
+                Thread.sleep(10);
+            }
+        }
+
+        System.out.println("RequestReplyTest passed");
+    }
+
+    private static void checkFailure(
+            final CompletableFuture<?> reply, final Class<? extends Throwable> expected)
+        throws InterruptedException, TimeoutException
+    {
+        try {
+            reply.get(10L, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            check(
+                    expected.isInstance(e.getCause()),
+                    "the request failed with " + expected.getSimpleName() + ", but got " + e.getCause());
+            return;
+        }
+        throw new AssertionError("Expected the request to fail with " + expected.getSimpleName());
+    }
+
+    private static void check(final boolean condition, final String expectation) {
+        if (!condition) {
+            throw new AssertionError("Expected that " + expectation);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package icejar;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that messages only pass between virtual servers which accept them,
+ * that a Sender reaches its server's modules again once the server is added
+ * back, and that a route is removed once nothing uses it.
+ */
+final class RouteTest {
+
+    public static void main(final String... args) throws InterruptedException {
+        final var senderCoordinator = MessagePasser.createCoordinator("from", "sender");
+        final var receiverCoordinator = MessagePasser.createCoordinator("to", "receiver");
+
+        final List<Integer> handled = Collections.synchronizedList(new ArrayList<>());
+        receiverCoordinator.getReceiver("numbers", Integer.class, handled::add);
+
+        MessagePasser.Sender<Integer> sender =
+            senderCoordinator.getSender("to", "receiver", "numbers");
+        check(!sender.send(0), "a server doesn't accept messages from other servers by default");
+
+        MessagePasser.setAcceptedServers("to", List.of("from"));
+        check(sender.send(1), "a server accepts messages from the servers it lists");
+
+        // The route outlives the server, since the Sender still uses it.
+        MessagePasser.removeServer("to");
+        check(!sender.send(2), "a removed server doesn't accept messages");
+        check(MessagePasser.getChannelStats("to").size() == 1, "the route is kept while a Sender uses it");
+
+        MessagePasser.setAcceptedServers("to", List.of("*"));
+        receiverCoordinator.getReceiver("numbers", Integer.class, handled::add);
+        check(sender.send(3), "the Sender reaches the server once it is added back");
+        check(handled.equals(List.of(1, 3)), "only the accepted messages were handled, but got " + handled);
+        check(
+                MessagePasser.getChannelStats("to").get(0).delivered() == 2,
+                "the route's metrics were kept along with it");
+
+        MessagePasser.removeServer("to");
+        sender = null;
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!MessagePasser.getChannelStats("to").isEmpty()) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new AssertionError("Expected the unused route to be removed");
+            }
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        System.out.println("RouteTest passed");
+    }
+
+    private static void check(final boolean condition, final String expectation) {
+        if (!condition) {
+            throw new AssertionError("Expected that " + expectation);
+        }
+    }
+}
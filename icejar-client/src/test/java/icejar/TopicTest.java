@@ -0,0 +1,136 @@
+package icejar;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Checks that a published message reaches every subscriber of a topic, that
+ * each subscription has metrics of its own and its own overflow policy, and
+ * that a topic is removed once nothing uses it.
+ */
+final class TopicTest {
+    private static final String SERVER = "topics";
+
+    public static void main(final String... args) throws InterruptedException {
+        fanOut();
+        dropOldest();
+        removeUnused();
+
+        System.out.println("TopicTest passed");
+    }
+
+    private static void fanOut() throws InterruptedException {
+        final var first = MessagePasser.createCoordinator(SERVER, "first");
+        final var second = MessagePasser.createCoordinator(SERVER, "second");
+
+        final List<Integer> firstHandled = Collections.synchronizedList(new ArrayList<>());
+        final List<Integer> secondHandled = Collections.synchronizedList(new ArrayList<>());
+        first.subscribe("news", Integer.class, 4, MessagePassing.OverflowPolicy.DROP_NEWEST)
+            .setHandler(firstHandled::add);
+        second.subscribe("news", Integer.class, 4, MessagePassing.OverflowPolicy.DROP_NEWEST)
+            .setHandler(secondHandled::add);
+
+        final MessagePasser.Publisher<Integer> publisher = first.getPublisher("news");
+        check(publisher.publish(1) == 2, "the message is published to both subscribers");
+        check(publisher.publish(2) == 2, "the next message is published to both subscribers");
+
+        awaitCondition(() -> firstHandled.size() == 2 && secondHandled.size() == 2);
+        check(
+                firstHandled.equals(List.of(1, 2)) && secondHandled.equals(List.of(1, 2)),
+                "both subscribers handled the messages in order");
+
+        final var stats = first.getTopicStats("news");
+        check(stats.size() == 2, "each subscriber has its own metrics, but got " + stats);
+        for (final var subscriberStats: stats) {
+            check(
+                    subscriberStats.sent() == 2 && subscriberStats.delivered() == 2,
+                    "both messages count as delivered to " + subscriberStats.moduleName());
+        }
+    }
+
+    private static void dropOldest() throws InterruptedException {
+        final var coordinator = MessagePasser.createCoordinator(SERVER, "module");
+
+        final var started = new CountDownLatch(1);
+        final var release = new CountDownLatch(1);
+        final List<Integer> handled = Collections.synchronizedList(new ArrayList<>());
+        coordinator.subscribe("latest", Integer.class, 1, MessagePassing.OverflowPolicy.DROP_OLDEST)
+            .setHandler(message -> {
+                handled.add(message);
+                if (message == 0) {
+                    started.countDown();
+                    await(release);
+                }
+            });
+
+        final MessagePasser.Publisher<Integer> publisher = coordinator.getPublisher("latest");
+        publisher.publish(0);
+        await(started);
+
+        // Each message replaces the one before it in the queue.
+        check(publisher.publish(1) == 1 && publisher.publish(2) == 1, "newer messages are accepted");
+        release.countDown();
+        awaitCondition(() -> handled.size() == 2);
+
+        check(handled.equals(List.of(0, 2)), "only the newest message was kept, but got " + handled);
+        check(
+                coordinator.getTopicStats("latest").get(0).queueRejections() == 1,
+                "the dropped message is counted as rejected");
+    }
+
+    private static void removeUnused() throws InterruptedException {
+        final var coordinator = MessagePasser.createCoordinator(SERVER, "unused");
+
+        // A topic without a Publisher is removed along with its last
+        // subscription.
+        coordinator.subscribe("dynamic", Integer.class, 1, MessagePassing.OverflowPolicy.DROP_NEWEST);
+        check(coordinator.getTopicStats("dynamic").size() == 1, "the subscription has metrics");
+        MessagePasser.removeModule(SERVER, "unused");
+        check(coordinator.getTopicStats("dynamic").isEmpty(), "the unused topic was removed");
+
+        // A topic with a Publisher is kept until the Publisher is garbage
+        // collected.
+        coordinator.subscribe("published", Integer.class, 1, MessagePassing.OverflowPolicy.DROP_NEWEST);
+        MessagePasser.Publisher<Integer> publisher = coordinator.getPublisher("published");
+        MessagePasser.removeModule(SERVER, "unused");
+        check(
+                coordinator.getTopicStats("published").size() == 1,
+                "the topic and its metrics are kept while a Publisher uses it");
+
+        publisher = null;
+        awaitCondition(() -> {
+            System.gc();
+            return coordinator.getTopicStats("published").isEmpty();
+        });
+    }
+
+    private static void awaitCondition(final BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new AssertionError("Timed out waiting for the topic");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            if (!latch.await(10L, TimeUnit.SECONDS)) {
+                throw new AssertionError("Timed out waiting for the handler");
+            }
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void check(final boolean condition, final String expectation) {
+        if (!condition) {
+            throw new AssertionError("Expected that " + expectation);
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package icejar;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.zeroc.Ice.Current;
+import com.zeroc.Ice.InputStream;
+import com.zeroc.Ice.OperationMode;
+import com.zeroc.Ice.OutputStream;
+import com.zeroc.Ice.UserException;
+import com.zeroc.IceInternal.Incoming;
+import MumbleServer.*;
+
+
+// Moves the calls of authenticators off of Ice's dispatch thread.
+//
+// The Ice server thread pool of a communicator has a single thread, which
+// also dispatches server callbacks, so an authenticator which queries a
+// database would otherwise hold up every callback while it does. Instead, the
+// parameters of a request are read on the dispatch thread, the authenticator
+// is called on `executor`, and the reply is sent once it returns.
+//
+// This mirrors the dispatcher which Ice 3.7 generates for AMD operations, and
+// depends on com.zeroc.IceInternal.Incoming and `_iceCheckMode`, so it must be
+// checked against the generated code when Ice is upgraded.
+final class AuthenticatorDispatch {
+
+    // Runs the calls of authenticators. The Mumble server waits for the
+    // reply to each request, so there are only as many calls at a time as
+    // there are virtual servers using authenticators.
+    static final ExecutorService executor =
+        Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "icejar-authenticator");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    private AuthenticatorDispatch() {}
+
+    // Wrap an authenticator so that its calls are dispatched asynchronously.
+    // Authenticators which already dispatch their calls asynchronously are
+    // returned as they are.
+    static ServerAuthenticator wrap(ServerAuthenticator authenticator) {
+        if (
+                authenticator instanceof CachingAuthenticator
+                || authenticator instanceof AsyncAuthenticator)
+        {
+            return authenticator;
+        } else if (authenticator instanceof ServerUpdatingAuthenticator updating) {
+            return new AsyncUpdatingAuthenticator(updating);
+        } else {
+            return new AsyncAuthenticator(authenticator);
+        }
+    }
+
+    // Dispatch a request to an operation of `authenticator`, or return null if
+    // the operation isn't an operation of ServerAuthenticator or, if
+    // `authenticator` implements it, ServerUpdatingAuthenticator.
+    static CompletionStage<OutputStream> dispatch(
+            ServerAuthenticator authenticator, Incoming in, Current current)
+    {
+        switch (current.operation) {
+            case "authenticate": {
+                checkIdempotent(current);
+                InputStream istr = in.startReadParams();
+                String name = istr.readString();
+                String pw = istr.readString();
+                byte[][] certificates = CertificateListHelper.read(istr);
+                String certhash = istr.readString();
+                boolean certstrong = istr.readBool();
+                in.endReadParams();
+
+                return in.setResultFuture(
+                        CompletableFuture.supplyAsync(
+                            () -> authenticator.authenticate(
+                                name, pw, certificates, certhash, certstrong, current),
+                            executor),
+                        (ostr, result) -> result.write(ostr));
+            }
+            case "getInfo": {
+                checkIdempotent(current);
+                int id = readInt(in);
+
+                return in.setResultFuture(
+                        CompletableFuture.supplyAsync(
+                            () -> authenticator.getInfo(id, current), executor),
+                        (ostr, info) -> info.write(ostr));
+            }
+            case "nameToId": {
+                checkIdempotent(current);
+                InputStream istr = in.startReadParams();
+                String name = istr.readString();
+                in.endReadParams();
+
+                return in.setResultFuture(
+                        CompletableFuture.supplyAsync(
+                            () -> authenticator.nameToId(name, current), executor),
+                        (ostr, id) -> ostr.writeInt(id));
+            }
+            case "idToName": {
+                checkIdempotent(current);
+                int id = readInt(in);
+
+                return in.setResultFuture(
+                        CompletableFuture.supplyAsync(
+                            () -> authenticator.idToName(id, current), executor),
+                        (ostr, name) -> ostr.writeString(name));
+            }
+            case "idToTexture": {
+                checkIdempotent(current);
+                int id = readInt(in);
+
+                return in.setResultFuture(
+                        CompletableFuture.supplyAsync(
+                            () -> authenticator.idToTexture(id, current), executor),
+                        (ostr, texture) -> ostr.writeByteSeq(texture));
+            }
+        }
+
+        if (authenticator instanceof ServerUpdatingAuthenticator updating) {
+            return dispatchUpdating(updating, in, current);
+        }
+        return null;
+    }
+
+    private static CompletionStage<OutputStream> dispatchUpdating(
+            ServerUpdatingAuthenticator authenticator, Incoming in, Current current)
+    {
+        switch (current.operation) {
+            case "registerUser": {
+                com.zeroc.Ice.Object._iceCheckMode(OperationMode.Normal, current.mode);
+                InputStream istr = in.startReadParams();
+                Map<UserInfo, String> info = UserInfoMapHelper.read(istr);
+                in.endReadParams();
+
+                return in.setResultFuture(
+                        CompletableFuture.supplyAsync(
+                            () -> authenticator.registerUser(info, current), executor),
+                        (ostr, id) -> ostr.writeInt(id));
+            }
+            case "unregisterUser": {
+                com.zeroc.Ice.Object._iceCheckMode(OperationMode.Normal, current.mode);
+                int id = readInt(in);
+
+                return in.setResultFuture(
+                        CompletableFuture.supplyAsync(
+                            () -> authenticator.unregisterUser(id, current), executor),
+                        (ostr, result) -> ostr.writeInt(result));
+            }
+            case "getRegisteredUsers": {
+                checkIdempotent(current);
+                InputStream istr = in.startReadParams();
+                String filter = istr.readString();
+                in.endReadParams();
+
+                return in.setResultFuture(
+                        CompletableFuture.supplyAsync(
+                            () -> authenticator.getRegisteredUsers(filter, current),
+                            executor),
+                        (ostr, users) -> NameMapHelper.write(ostr, users));
+            }
+            case "setInfo": {
+                checkIdempotent(current);
+                InputStream istr = in.startReadParams();
+                int id = istr.readInt();
+                Map<UserInfo, String> info = UserInfoMapHelper.read(istr);
+                in.endReadParams();
+
+                return in.setResultFuture(
+                        CompletableFuture.supplyAsync(
+                            () -> authenticator.setInfo(id, info, current), executor),
+                        (ostr, result) -> ostr.writeInt(result));
+            }
+            case "setTexture": {
+                checkIdempotent(current);
+                InputStream istr = in.startReadParams();
+                int id = istr.readInt();
+                byte[] texture = istr.readByteSeq();
+                in.endReadParams();
+
+                return in.setResultFuture(
+                        CompletableFuture.supplyAsync(
+                            () -> authenticator.setTexture(id, texture, current), executor),
+                        (ostr, result) -> ostr.writeInt(result));
+            }
+            default:
+                return null;
+        }
+    }
+
+    static void checkIdempotent(Current current) {
+        com.zeroc.Ice.Object._iceCheckMode(OperationMode.Idempotent, current.mode);
+    }
+
+    // Read the parameters of an operation whose only parameter is an int.
+    static int readInt(Incoming in) {
+        InputStream istr = in.startReadParams();
+        int value = istr.readInt();
+        in.endReadParams();
+        return value;
+    }
+
+    // Passes calls on to an authenticator which dispatches them
+    // synchronously.
+    private static class AsyncAuthenticator implements ServerAuthenticator {
+        private final ServerAuthenticator authenticator;
+
+        private AsyncAuthenticator(ServerAuthenticator authenticator) {
+            this.authenticator = authenticator;
+        }
+
+        @Override
+        public CompletionStage<OutputStream> _iceDispatch(Incoming in, Current current)
+            throws UserException
+        {
+            CompletionStage<OutputStream> result = dispatch(authenticator, in, current);
+            if (result != null) {
+                return result;
+            }
+            return ServerAuthenticator.super._iceDispatch(in, current);
+        }
+
+        @Override
+        public AuthenticateResult authenticate(
+                String name, String pw, byte[][] certificates, String certhash,
+                boolean certstrong, Current current)
+        {
+            return authenticator.authenticate(
+                    name, pw, certificates, certhash, certstrong, current);
+        }
+
+        @Override
+        public GetInfoResult getInfo(int id, Current current) {
+            return authenticator.getInfo(id, current);
+        }
+
+        @Override
+        public int nameToId(String name, Current current) {
+            return authenticator.nameToId(name, current);
+        }
+
+        @Override
+        public String idToName(int id, Current current) {
+            return authenticator.idToName(id, current);
+        }
+
+        @Override
+        public byte[] idToTexture(int id, Current current) {
+            return authenticator.idToTexture(id, current);
+        }
+    }
+
+    private static final class AsyncUpdatingAuthenticator
+        extends AsyncAuthenticator implements ServerUpdatingAuthenticator
+    {
+        private final ServerUpdatingAuthenticator authenticator;
+
+        private AsyncUpdatingAuthenticator(ServerUpdatingAuthenticator authenticator) {
+            super(authenticator);
+            this.authenticator = authenticator;
+        }
+
+        @Override
+        public CompletionStage<OutputStream> _iceDispatch(Incoming in, Current current)
+            throws UserException
+        {
+            CompletionStage<OutputStream> result = dispatch(authenticator, in, current);
+            if (result != null) {
+                return result;
+            }
+            return ServerUpdatingAuthenticator.super._iceDispatch(in, current);
+        }
+
+        @Override
+        public int registerUser(Map<UserInfo, String> info, Current current) {
+            return authenticator.registerUser(info, current);
+        }
+
+        @Override
+        public int unregisterUser(int id, Current current) {
+            return authenticator.unregisterUser(id, current);
+        }
+
+        @Override
+        public Map<Integer, String> getRegisteredUsers(String filter, Current current) {
+            return authenticator.getRegisteredUsers(filter, current);
+        }
+
+        @Override
+        public int setInfo(int id, Map<UserInfo, String> info, Current current) {
+            return authenticator.setInfo(id, info, current);
+        }
+
+        @Override
+        public int setTexture(int id, byte[] tex, Current current) {
+            return authenticator.setTexture(id, tex, current);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package icejar;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+import MumbleServer.*;
+
+/**
+ * Batch-oneway view of a virtual server, for sending many requests which
+ * don't return anything (such as `setState`, `sendMessage` or
+ * `setUserComment`) without waiting for a round trip for each of them.
+ * <p>
+ * Requests made through the proxy returned by {@link #getServer()} are queued
+ * instead of being sent immediately. Queued requests are written to the
+ * network together when {@link #flush()} is called, when the number of queued
+ * requests reaches the maximum batch size, or when the oldest queued request
+ * has waited for the maximum delay.
+ * <p>
+ * Requests sent in a batch are not acknowledged by the Mumble server, so
+ * errors (e.g. a user who has disconnected in the meantime) are not reported.
+ * Methods which return a value can't be called through the batch proxy.
+ * <p>
+ * Group members which Icejar caches for the server (see
+ * {@link GroupMembershipCache}) are invalidated once a batch containing
+ * `setACL`, `addUserToGroup` or `removeUserFromGroup` requests has been sent.
+ * <p>
+ * Each BatchServer keeps its own queue of requests, but shares the existing
+ * connection to the Mumble server, so flushing one BatchServer never sends
+ * the requests of another. Requests are only ordered relative to other
+ * requests made through the same BatchServer.
+ * <p>
+ * Example:
+ * <pre>{@code
+ * try (BatchServer batch = BatchServer.create(server, 100, 50, TimeUnit.MILLISECONDS)) {
+ *     for (User user: server.getUsers().values()) {
+ *         batch.getServer().sendMessage(user.session, announcement);
+ *     }
+ * }
+ * }</pre>
+ */
+public final class BatchServer implements AutoCloseable {
+
+    private static final ScheduledExecutorService flushScheduler =
+        Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "icejar-batch-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    private final ServerPrx batchServer;
+    private final ServerPrx server;
+    // The server passed to `create()`, whose cached group members may have
+    // to be invalidated.
+    private final ServerPrx view;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+
+    private int queuedCount;
+    private long batchCount;
+    private long flushedCount;
+    private ScheduledFuture<?> scheduledFlush;
+    // Channels whose groups are changed by queued requests.
+    private final Set<Integer> changedChannels = new HashSet<>();
+    private volatile IntConsumer flushListener;
+    private boolean isClosed;
+
+    private BatchServer(ServerPrx server, int maxBatchSize, long maxDelayNanos) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Maximum batch size must be at least 1");
+        }
+
+        // Ice queues batch requests per proxy object rather than per
+        // connection, so a new batch-oneway proxy keeps the requests of this
+        // BatchServer apart from those of others over the same connection.
+        // `ice_batchOneway()` returns the same proxy if it is already
+        // batch-oneway, which `ice_twoway()` prevents.
+        this.batchServer = server.ice_twoway().ice_batchOneway();
+        this.view = server;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = maxDelayNanos;
+
+        this.server = (ServerPrx) Proxy.newProxyInstance(
+                ServerPrx.class.getClassLoader(),
+                new Class<?>[] { ServerPrx.class },
+                new BatchHandler());
+    }
+
+    /**
+     * Create a batch-oneway view of the given virtual server, whose queued
+     * requests are only sent when {@link #flush()} or {@link #close()} is
+     * called.
+     *
+     * @param server Interface to the virtual server to which requests will be
+     * sent.
+     */
+    public static BatchServer create(ServerPrx server) {
+        return new BatchServer(server, Integer.MAX_VALUE, -1);
+    }
+
+    /**
+     * Create a batch-oneway view of the given virtual server, whose queued
+     * requests are also sent automatically.
+     *
+     * @param server Interface to the virtual server to which requests will be
+     * sent.
+     * @param maxBatchSize Number of queued requests at which the batch is
+     * sent.
+     * @param maxDelay Maximum time for which a request is queued before the
+     * batch is sent.
+     * @param unit Unit of `maxDelay`.
+     */
+    public static BatchServer create(
+            ServerPrx server, int maxBatchSize, long maxDelay, TimeUnit unit)
+    {
+        return new BatchServer(server, maxBatchSize, unit.toNanos(maxDelay));
+    }
+
+    /**
+     * Get the proxy through which requests are queued.
+     */
+    public ServerPrx getServer() {
+        return server;
+    }
+
+    /**
+     * Set a method which is called with the number of requests in each batch
+     * once it has been written to the network, or null to remove it.
+     * <p>
+     * The listener may be called from the thread which made a request, the
+     * thread which called {@link #flush()}, a timer thread, or an Ice
+     * thread.
+     */
+    public void setFlushListener(IntConsumer flushListener) {
+        this.flushListener = flushListener;
+    }
+
+    /**
+     * Send all queued requests.
+     *
+     * @return A future which completes with the number of requests sent once
+     * they have been written to the network.
+     */
+    public CompletableFuture<Integer> flush() {
+        CompletableFuture<Integer> sent;
+        synchronized (this) {
+            sent = sendBatch();
+        }
+
+        notifyFlushListener(sent);
+        return sent;
+    }
+
+    /**
+     * Get the number of requests which are queued and haven't been sent yet.
+     */
+    public synchronized int getQueuedCount() {
+        return queuedCount;
+    }
+
+    /**
+     * Get the number of batches which have been sent.
+     */
+    public synchronized long getBatchCount() {
+        return batchCount;
+    }
+
+    /**
+     * Get the total number of requests which have been sent in batches.
+     */
+    public synchronized long getFlushedCount() {
+        return flushedCount;
+    }
+
+    /**
+     * Send all queued requests. Requests made after the BatchServer is closed
+     * are sent immediately, each as a batch of its own.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            isClosed = true;
+        }
+
+        flush().join();
+    }
+
+    // Must be called while synchronized on this BatchServer, so that no other
+    // request is queued between counting the batch and sending it.
+    private CompletableFuture<Integer> sendBatch() {
+        int count = queuedCount;
+        queuedCount = 0;
+
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+
+        if (count == 0) {
+            return CompletableFuture.completedFuture(0);
+        }
+
+        batchCount++;
+        flushedCount += count;
+
+        CompletableFuture<Void> flushed = batchServer.ice_flushBatchRequestsAsync();
+
+        for (int channel: changedChannels) {
+            GroupMembershipCache.invalidateAfter(view, channel, flushed);
+        }
+        changedChannels.clear();
+
+        return flushed.thenApply(v -> count);
+    }
+
+    private void notifyFlushListener(CompletableFuture<Integer> sent) {
+        IntConsumer flushListener = this.flushListener;
+
+        if (flushListener != null) {
+            sent.thenAccept(count -> {
+                if (count > 0) {
+                    flushListener.accept(count);
+                }
+            });
+        }
+    }
+
+    private final class BatchHandler implements InvocationHandler {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+            throws Throwable
+        {
+            if (method.getDeclaringClass() == Object.class) {
+                // equals, hashCode and toString
+                return method.invoke(batchServer, args);
+            }
+
+            Object result;
+            CompletableFuture<Integer> sent = null;
+
+            synchronized (BatchServer.this) {
+                try {
+                    result = method.invoke(batchServer, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+
+                if (method.getName().startsWith("ice_")) {
+                    // Proxy methods don't queue any requests.
+                    return result;
+                }
+
+                queuedCount++;
+
+                Integer channel = GroupMembershipCache.getChangedChannel(
+                        method.getName(), args);
+                if (channel != null) {
+                    changedChannels.add(channel);
+                }
+
+                if (isClosed || queuedCount >= maxBatchSize) {
+                    sent = sendBatch();
+                } else if (scheduledFlush == null && maxDelayNanos >= 0) {
+                    scheduledFlush = flushScheduler.schedule(
+                            BatchServer.this::flush,
+                            maxDelayNanos, TimeUnit.NANOSECONDS);
+                }
+            }
+
+            if (sent != null) {
+                notifyFlushListener(sent);
+            }
+
+            return result;
+        }
+    }
+}
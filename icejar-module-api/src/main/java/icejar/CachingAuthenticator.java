@@ -0,0 +1,372 @@
+package icejar;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import com.zeroc.Ice.Current;
+import com.zeroc.Ice.InputStream;
+import com.zeroc.Ice.OutputStream;
+import com.zeroc.Ice.UserException;
+import com.zeroc.IceInternal.Incoming;
+import MumbleServer.*;
+
+/**
+ * Base class for authenticators whose lookups are slow, e.g. because they
+ * query a database.
+ * <p>
+ * The results of `nameToId`, `idToName` and `getInfo` are cached, so that the
+ * Mumble server's repeated requests about the same users are answered without
+ * calling the lookup methods again. Results which don't identify a user
+ * (e.g. `nameToId` returning a negative ID) are cached as well, for a
+ * separate, usually shorter, time. Concurrent requests about the same user
+ * share a single lookup, and lookups which throw are not cached.
+ * <p>
+ * `authenticate` is not cached and must be implemented by subclasses, as
+ * must `idToTexture`. Cached results should be invalidated when a user is
+ * registered, renamed or removed.
+ * <p>
+ * Requests from the Mumble server are dispatched asynchronously: a lookup
+ * which isn't cached runs on a separate thread, and the reply is sent once it
+ * returns, so it doesn't hold up other callbacks in the meantime. The same
+ * applies to `authenticate`, which is called through
+ * {@link #authenticateAsync}; subclasses which can check credentials without
+ * blocking a thread may override that method instead. The Mumble
+ * server still waits for the reply to each request, so lookups should be kept
+ * fast, e.g. by indexing the queries they make, and the cache times long
+ * enough that most requests are answered from the cache.
+ * <p>
+ * Example:
+ * <pre>{@code
+ * class DatabaseAuthenticator extends CachingAuthenticator {
+ *     DatabaseAuthenticator() {
+ *         super(5, 1, TimeUnit.MINUTES);
+ *     }
+ *
+ *     protected int lookupNameToId(String name) {
+ *         return database.findUserID(name).orElse(-2);
+ *     }
+ *
+ *     // ...
+ * }
+ * }</pre>
+ */
+public abstract class CachingAuthenticator implements ServerAuthenticator {
+
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+
+    private final LookupCache<String, Integer> idsByName =
+        new LookupCache<>(id -> id < 0);
+    private final LookupCache<Integer, String> namesByID =
+        new LookupCache<>(name -> name == null || name.isEmpty());
+    private final LookupCache<Integer, GetInfoResult> infoByID =
+        new LookupCache<>(info -> info == null || !info.returnValue);
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Create an authenticator which caches results for a minute, and results
+     * which don't identify a user for 10 seconds.
+     */
+    protected CachingAuthenticator() {
+        this(60, 10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Create an authenticator with the given cache times.
+     *
+     * @param ttl Time for which results are cached.
+     * @param negativeTtl Time for which results which don't identify a user
+     * are cached.
+     * @param unit Unit of `ttl` and `negativeTtl`.
+     */
+    protected CachingAuthenticator(long ttl, long negativeTtl, TimeUnit unit) {
+        this.ttlNanos = unit.toNanos(ttl);
+        this.negativeTtlNanos = unit.toNanos(negativeTtl);
+    }
+
+    /**
+     * Look up the user ID of the user with the given name.
+     *
+     * @return The user ID, -2 if the name is unknown to this authenticator or
+     * -1 if the name is known but the user should be denied access.
+     */
+    protected abstract int lookupNameToId(String name);
+
+    /**
+     * Look up the name of the user with the given user ID.
+     *
+     * @return The name, or an empty string if the ID is unknown to this
+     * authenticator.
+     */
+    protected abstract String lookupIdToName(int id);
+
+    /**
+     * Look up the information about the user with the given user ID.
+     *
+     * @return The information, with `returnValue` false if the ID is unknown
+     * to this authenticator.
+     */
+    protected abstract GetInfoResult lookupInfo(int id);
+
+    @Override
+    public final int nameToId(String name, Current current) {
+        return idsByName.get(name, this::lookupNameToId);
+    }
+
+    @Override
+    public final String idToName(int id, Current current) {
+        return namesByID.get(id, this::lookupIdToName);
+    }
+
+    @Override
+    public final GetInfoResult getInfo(int id, Current current) {
+        return infoByID.get(id, this::lookupInfo);
+    }
+
+    /**
+     * Check the credentials of a user who is connecting, without blocking the
+     * thread which dispatched the request.
+     * <p>
+     * By default, this calls `authenticate` on a separate thread. The
+     * parameters are those of `authenticate`.
+     *
+     * @return A future which is completed with the result of the check.
+     */
+    protected CompletableFuture<AuthenticateResult> authenticateAsync(
+            String name, String pw, byte[][] certificates, String certhash,
+            boolean certstrong, Current current)
+    {
+        return CompletableFuture.supplyAsync(
+                () -> authenticate(name, pw, certificates, certhash, certstrong, current),
+                AuthenticatorDispatch.executor);
+    }
+
+    // The generated dispatcher calls the synchronous methods above on the Ice
+    // thread which dispatched the request. `authenticate` and the cached
+    // operations are dispatched here instead, so that the Ice thread only
+    // starts the lookup and the reply is sent once the lookup completes. The
+    // other operations are dispatched by AuthenticatorDispatch, which also
+    // explains how this depends on the code generated by Ice 3.7.
+    @Override
+    public CompletionStage<OutputStream> _iceDispatch(Incoming in, Current current)
+        throws UserException
+    {
+        switch (current.operation) {
+            case "authenticate": {
+                AuthenticatorDispatch.checkIdempotent(current);
+                InputStream istr = in.startReadParams();
+                String name = istr.readString();
+                String pw = istr.readString();
+                byte[][] certificates = CertificateListHelper.read(istr);
+                String certhash = istr.readString();
+                boolean certstrong = istr.readBool();
+                in.endReadParams();
+
+                return in.setResultFuture(
+                        authenticateAsync(name, pw, certificates, certhash, certstrong, current),
+                        (ostr, result) -> result.write(ostr));
+            }
+            case "nameToId": {
+                AuthenticatorDispatch.checkIdempotent(current);
+                InputStream istr = in.startReadParams();
+                String name = istr.readString();
+                in.endReadParams();
+
+                return in.setResultFuture(
+                        idsByName.getAsync(name, this::lookupNameToId),
+                        (ostr, id) -> ostr.writeInt(id));
+            }
+            case "idToName": {
+                AuthenticatorDispatch.checkIdempotent(current);
+                int id = AuthenticatorDispatch.readInt(in);
+
+                return in.setResultFuture(
+                        namesByID.getAsync(id, this::lookupIdToName),
+                        (ostr, name) -> ostr.writeString(name));
+            }
+            case "getInfo": {
+                AuthenticatorDispatch.checkIdempotent(current);
+                int id = AuthenticatorDispatch.readInt(in);
+
+                return in.setResultFuture(
+                        infoByID.getAsync(id, this::lookupInfo),
+                        (ostr, info) -> info.write(ostr));
+            }
+            default:
+                // This includes the operations of ServerUpdatingAuthenticator,
+                // which the dispatcher of ServerAuthenticator doesn't know.
+                CompletionStage<OutputStream> result =
+                    AuthenticatorDispatch.dispatch(this, in, current);
+                if (result != null) {
+                    return result;
+                }
+                return ServerAuthenticator.super._iceDispatch(in, current);
+        }
+    }
+
+    /**
+     * Discard the cached results about the user with the given name.
+     */
+    public void invalidate(String name) {
+        Integer id = idsByName.getCached(name);
+        idsByName.invalidate(name);
+
+        if (id != null && id >= 0) {
+            invalidate(id.intValue());
+        }
+    }
+
+    /**
+     * Discard the cached results about the user with the given user ID.
+     */
+    public void invalidate(int id) {
+        String name = namesByID.getCached(id);
+        namesByID.invalidate(id);
+        infoByID.invalidate(id);
+
+        if (name != null) {
+            idsByName.invalidate(name);
+        }
+    }
+
+    /**
+     * Discard all cached results.
+     */
+    public void invalidateAll() {
+        idsByName.invalidateAll();
+        namesByID.invalidateAll();
+        infoByID.invalidateAll();
+    }
+
+    /**
+     * Get the number of requests which were answered from the cache,
+     * including those which waited for a concurrent lookup.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Get the number of requests which required a lookup.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    private static final class Lookup<V> {
+        private final CompletableFuture<V> result = new CompletableFuture<>();
+        // Only valid once `result` has completed.
+        private volatile long expiryTime;
+
+        private boolean isExpired(long now) {
+            return result.isDone() && now - expiryTime >= 0;
+        }
+    }
+
+    private final class LookupCache<K, V> {
+        private final Map<K, Lookup<V>> lookups = new ConcurrentHashMap<>();
+        private final Predicate<V> isNegative;
+
+        private LookupCache(Predicate<V> isNegative) {
+            this.isNegative = isNegative;
+        }
+
+        private V get(K key, Function<K, V> lookupMethod) {
+            Lookup<V> newLookup = new Lookup<>();
+            Lookup<V> lookup = share(key, newLookup);
+            if (lookup == newLookup) {
+                run(key, newLookup, lookupMethod);
+            }
+
+            try {
+                return lookup.result.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException cause) {
+                    throw cause;
+                } else if (e.getCause() instanceof Error cause) {
+                    throw cause;
+                }
+                throw e;
+            }
+        }
+
+        // Like `get`, but a lookup which is needed runs on the lookup
+        // executor rather than on the calling thread.
+        private CompletableFuture<V> getAsync(K key, Function<K, V> lookupMethod) {
+            Lookup<V> newLookup = new Lookup<>();
+            Lookup<V> lookup = share(key, newLookup);
+            if (lookup == newLookup) {
+                AuthenticatorDispatch.executor.execute(() -> run(key, newLookup, lookupMethod));
+            }
+
+            return lookup.result;
+        }
+
+        // Get the lookup for the key, which is `newLookup` if there is no
+        // cached result and no lookup which is still running.
+        private Lookup<V> share(K key, Lookup<V> newLookup) {
+            // A lookup which is still running is shared rather than repeated.
+            Lookup<V> lookup = lookups.compute(key, (k, previousLookup) -> {
+                if (
+                        previousLookup != null
+                        && !previousLookup.isExpired(System.nanoTime()))
+                {
+                    return previousLookup;
+                }
+                return newLookup;
+            });
+
+            if (lookup == newLookup) {
+                missCount.incrementAndGet();
+            } else {
+                hitCount.incrementAndGet();
+            }
+
+            return lookup;
+        }
+
+        private void run(K key, Lookup<V> lookup, Function<K, V> lookupMethod) {
+            V value;
+            try {
+                value = lookupMethod.apply(key);
+            } catch (RuntimeException | Error e) {
+                lookups.remove(key, lookup);
+                lookup.result.completeExceptionally(e);
+                return;
+            }
+
+            long ttl = isNegative.test(value) ? negativeTtlNanos : ttlNanos;
+            lookup.expiryTime = System.nanoTime() + ttl;
+            lookup.result.complete(value);
+        }
+
+        // Get the cached value for the key, or null if there is none.
+        private V getCached(K key) {
+            Lookup<V> lookup = lookups.get(key);
+            if (
+                    lookup != null && lookup.result.isDone()
+                    && !lookup.result.isCompletedExceptionally())
+            {
+                return lookup.result.join();
+            }
+            return null;
+        }
+
+        private void invalidate(K key) {
+            lookups.remove(key);
+        }
+
+        private void invalidateAll() {
+            lookups.clear();
+        }
+    }
+}
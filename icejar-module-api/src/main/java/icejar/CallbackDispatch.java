@@ -0,0 +1,154 @@
+package icejar;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import com.zeroc.Ice.Current;
+import com.zeroc.Ice.ObjectAdapter;
+import MumbleServer.*;
+
+
+// Optionally moves the handling of callbacks off of Ice's dispatch threads.
+//
+// When an Executor is set for an ObjectAdapter, callbacks registered with it
+// through IceHelper are wrapped so that each call returns to Ice immediately,
+// and the module's callback runs on the Executor instead. Calls concerning the
+// same user session are still handled one at a time and in order, as are all
+// calls concerning channels.
+//
+// Bursts of `userStateChanged` calls may also be coalesced for an
+// ObjectAdapter, in which case ServerCallbacks are wrapped in a
+// CoalescingServerCallback. Without an Executor, its calls are handled one at
+// a time on a shared pool.
+final class CallbackDispatch {
+
+    private static final Map<ObjectAdapter, KeyedSerialExecutor> executors =
+        Collections.synchronizedMap(new WeakHashMap<>());
+    private static final Map<ObjectAdapter, Long> coalescingWindows =
+        Collections.synchronizedMap(new WeakHashMap<>());
+
+    private static final KeyedSerialExecutor coalescingLanes = new KeyedSerialExecutor(
+            Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "icejar-callback-coalesce");
+                thread.setDaemon(true);
+                return thread;
+            }));
+
+    private CallbackDispatch() {}
+
+    static void setExecutor(ObjectAdapter adapter, Executor executor) {
+        if (executor != null) {
+            executors.put(adapter, new KeyedSerialExecutor(executor));
+        } else {
+            executors.remove(adapter);
+        }
+    }
+
+    // Coalesce `userStateChanged` calls for the same session which arrive
+    // within `windowNanos` of the first, or stop coalescing them if
+    // `windowNanos` is not positive.
+    static void setCoalescingWindow(ObjectAdapter adapter, long windowNanos) {
+        if (windowNanos > 0) {
+            coalescingWindows.put(adapter, windowNanos);
+        } else {
+            coalescingWindows.remove(adapter);
+        }
+    }
+
+    static ServerCallback wrap(ObjectAdapter adapter, ServerCallback callback) {
+        KeyedSerialExecutor executor = executors.get(adapter);
+        Long windowNanos = coalescingWindows.get(adapter);
+
+        if (windowNanos != null) {
+            if (executor != null) {
+                return new CoalescingServerCallback(
+                        callback, executor, true, windowNanos);
+            } else {
+                return new CoalescingServerCallback(
+                        callback, coalescingLanes, false, windowNanos);
+            }
+        }
+
+        if (executor == null) {
+            return callback;
+        }
+
+        return new ServerCallback() {
+            @Override
+            public void userConnected(User state, Current current) {
+                executor.execute(
+                        state.session,
+                        () -> callback.userConnected(state, current));
+            }
+
+            @Override
+            public void userDisconnected(User state, Current current) {
+                executor.execute(
+                        state.session,
+                        () -> callback.userDisconnected(state, current));
+            }
+
+            @Override
+            public void userStateChanged(User state, Current current) {
+                executor.execute(
+                        state.session,
+                        () -> callback.userStateChanged(state, current));
+            }
+
+            @Override
+            public void userTextMessage(
+                    User state, TextMessage message, Current current)
+            {
+                executor.execute(
+                        state.session,
+                        () -> callback.userTextMessage(state, message, current));
+            }
+
+            @Override
+            public void channelCreated(Channel state, Current current) {
+                executor.execute(
+                        KeyedSerialExecutor.CHANNEL_LANE,
+                        () -> callback.channelCreated(state, current));
+            }
+
+            @Override
+            public void channelRemoved(Channel state, Current current) {
+                executor.execute(
+                        KeyedSerialExecutor.CHANNEL_LANE,
+                        () -> callback.channelRemoved(state, current));
+            }
+
+            @Override
+            public void channelStateChanged(Channel state, Current current) {
+                executor.execute(
+                        KeyedSerialExecutor.CHANNEL_LANE,
+                        () -> callback.channelStateChanged(state, current));
+            }
+        };
+    }
+
+    static ServerContextCallback wrap(
+            ObjectAdapter adapter, ServerContextCallback callback)
+    {
+        KeyedSerialExecutor executor = executors.get(adapter);
+        if (executor == null) {
+            return callback;
+        }
+
+        return new ServerContextCallback() {
+            @Override
+            public void contextAction(
+                    String action, User usr, int session, int channelid,
+                    Current current)
+            {
+                executor.execute(
+                        session,
+                        () -> callback.contextAction(
+                            action, usr, session, channelid, current));
+            }
+        };
+    }
+}
@@ -0,0 +1,169 @@
+package icejar;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import MumbleServer.*;
+
+
+// Index of the links between the channels of a virtual server.
+//
+// Links in Mumble go both ways, so channels which are linked to each other,
+// directly or through other channels, form connected components. Components
+// are computed when they are first looked up and shared by all of their
+// channels. A change to the links of a channel only discards the components it
+// affects, which are computed again on the next lookup.
+final class ChannelLinkGraph {
+
+    // Links as stated by each channel, and the reverse of them, so that a
+    // link stated by only one of the two channels still connects them.
+    private final Map<Integer, Set<Integer>> links = new HashMap<>();
+    private final Map<Integer, Set<Integer>> linkedBy = new HashMap<>();
+
+    private final Map<Integer, Set<Integer>> components = new HashMap<>();
+
+    synchronized void putChannels(Map<Integer, Channel> channels) {
+        links.clear();
+        linkedBy.clear();
+        components.clear();
+
+        for (Channel channel: channels.values()) {
+            putLinks(channel);
+        }
+    }
+
+    synchronized void putChannel(Channel channel) {
+        Set<Integer> previousLinks = links.get(channel.id);
+        if (previousLinks != null && previousLinks.equals(toSet(channel.links))) {
+            // Most channel state changes don't concern links.
+            return;
+        }
+
+        discardComponent(channel.id);
+        for (int link: channel.links) {
+            discardComponent(link);
+        }
+
+        putLinks(channel);
+    }
+
+    synchronized void removeChannel(int channel) {
+        discardComponent(channel);
+        removeLinks(channel);
+
+        // Channels which still state a link to the removed one don't connect
+        // through it any more.
+        Set<Integer> linkingChannels = linkedBy.remove(channel);
+        if (linkingChannels != null) {
+            for (int linkingChannel: linkingChannels) {
+                Set<Integer> channelLinks = links.get(linkingChannel);
+                if (channelLinks != null) {
+                    channelLinks.remove(channel);
+                }
+            }
+        }
+    }
+
+    // Get the IDs of the channels which are linked to the given channel,
+    // including the channel itself, or null if the channel isn't known.
+    synchronized Set<Integer> getLinkedChannels(int channel) {
+        if (!links.containsKey(channel)) {
+            return null;
+        }
+
+        Set<Integer> component = components.get(channel);
+        if (component == null) {
+            component = findComponent(channel);
+            for (int member: component) {
+                components.put(member, component);
+            }
+        }
+
+        return component;
+    }
+
+    // Must be called while synchronized on this ChannelLinkGraph.
+    private void putLinks(Channel channel) {
+        removeLinks(channel.id);
+
+        Set<Integer> channelLinks = toSet(channel.links);
+        links.put(channel.id, channelLinks);
+        for (int link: channelLinks) {
+            linkedBy.computeIfAbsent(link, l -> new HashSet<>()).add(channel.id);
+        }
+    }
+
+    // Must be called while synchronized on this ChannelLinkGraph.
+    private void removeLinks(int channel) {
+        Set<Integer> channelLinks = links.remove(channel);
+        if (channelLinks == null) {
+            return;
+        }
+
+        for (int link: channelLinks) {
+            Set<Integer> linkingChannels = linkedBy.get(link);
+            if (linkingChannels != null) {
+                linkingChannels.remove(channel);
+                if (linkingChannels.isEmpty()) {
+                    linkedBy.remove(link);
+                }
+            }
+        }
+    }
+
+    // Must be called while synchronized on this ChannelLinkGraph.
+    private void discardComponent(int channel) {
+        Set<Integer> component = components.get(channel);
+        if (component != null) {
+            for (int member: component) {
+                components.remove(member);
+            }
+        }
+    }
+
+    // Must be called while synchronized on this ChannelLinkGraph.
+    private Set<Integer> findComponent(int channel) {
+        Set<Integer> component = new HashSet<>();
+        Deque<Integer> unvisited = new ArrayDeque<>();
+
+        component.add(channel);
+        unvisited.add(channel);
+
+        while (!unvisited.isEmpty()) {
+            int current = unvisited.remove();
+
+            visitLinks(links.get(current), component, unvisited);
+            visitLinks(linkedBy.get(current), component, unvisited);
+        }
+
+        return Collections.unmodifiableSet(component);
+    }
+
+    private static void visitLinks(
+            Set<Integer> channelLinks, Set<Integer> component,
+            Deque<Integer> unvisited)
+    {
+        if (channelLinks == null) {
+            return;
+        }
+
+        for (int link: channelLinks) {
+            if (component.add(link)) {
+                unvisited.add(link);
+            }
+        }
+    }
+
+    private static Set<Integer> toSet(int[] channels) {
+        Set<Integer> set = new HashSet<>(channels.length);
+        for (int channel: channels) {
+            set.add(channel);
+        }
+        return set;
+    }
+}
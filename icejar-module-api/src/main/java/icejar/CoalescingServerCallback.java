@@ -0,0 +1,167 @@
+package icejar;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.zeroc.Ice.Current;
+import MumbleServer.*;
+
+
+// Collapses bursts of `userStateChanged` calls for the same session into a
+// single call with the latest state.
+//
+// The first state change of a session opens a slot which is held open for the
+// coalescing window, and any further state changes for that session within the
+// window replace the state in it. All calls pass through lanes of a
+// KeyedSerialExecutor. A slot takes its place in the session's lane when it is
+// closed, either by the timer or by any other call concerning the session,
+// which is queued right after it. So the callback still sees the events of a
+// session in the order in which they arrived.
+final class CoalescingServerCallback implements ServerCallback {
+
+    private static final ScheduledExecutorService timer =
+        Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "icejar-callback-coalesce-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    // Key for the lane in which every call is handled if calls are not
+    // ordered per session.
+    private final Object singleLane = new Object();
+
+    private final ServerCallback callback;
+    private final KeyedSerialExecutor lanes;
+    private final boolean isOrderedPerSession;
+    private final long windowNanos;
+
+    // Slots which are still open, by session ID. A slot is only modified
+    // while it is open, and its calls are only queued while holding the lock
+    // on this map, so calls are queued in the order in which they arrived.
+    private final Map<Integer, Slot> openSlots = new HashMap<>();
+
+    private static final class Slot {
+        private User state;
+        private Current current;
+
+        private Slot(User state, Current current) {
+            this.state = state;
+            this.current = current;
+        }
+    }
+
+    // If `isOrderedPerSession` is false, every call uses a single lane, so the
+    // callback is never called concurrently.
+    CoalescingServerCallback(
+            ServerCallback callback, KeyedSerialExecutor lanes,
+            boolean isOrderedPerSession, long windowNanos)
+    {
+        this.callback = callback;
+        this.lanes = lanes;
+        this.isOrderedPerSession = isOrderedPerSession;
+        this.windowNanos = windowNanos;
+    }
+
+    private Object sessionLane(int session) {
+        return isOrderedPerSession ? session : singleLane;
+    }
+
+    private Object channelLane() {
+        return isOrderedPerSession ? KeyedSerialExecutor.CHANNEL_LANE : singleLane;
+    }
+
+    // Queue the latest state in the slot in the session's lane. Must be
+    // called while synchronized on `openSlots`, after removing the slot.
+    private void queueSlot(int session, Slot slot) {
+        User state = slot.state;
+        Current current = slot.current;
+
+        lanes.execute(
+                sessionLane(session),
+                () -> callback.userStateChanged(state, current));
+    }
+
+    private void closeSlot(int session, Slot slot) {
+        synchronized (openSlots) {
+            // The slot may already have been closed by another call.
+            if (openSlots.remove(session, slot)) {
+                queueSlot(session, slot);
+            }
+        }
+    }
+
+    // Close the session's slot (if any), so that the state in it is handled
+    // before the call.
+    private void executeForSession(int session, Runnable call) {
+        synchronized (openSlots) {
+            Slot slot = openSlots.remove(session);
+            if (slot != null) {
+                queueSlot(session, slot);
+            }
+
+            lanes.execute(sessionLane(session), call);
+        }
+    }
+
+    @Override
+    public void userStateChanged(User state, Current current) {
+        int session = state.session;
+        Slot slot;
+
+        synchronized (openSlots) {
+            slot = openSlots.get(session);
+
+            if (slot != null) {
+                // The state will be handled in place of the previous one.
+                slot.state = state;
+                slot.current = current;
+                return;
+            }
+
+            slot = new Slot(state, current);
+            openSlots.put(session, slot);
+        }
+
+        Slot newSlot = slot;
+        timer.schedule(
+                () -> closeSlot(session, newSlot),
+                windowNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void userConnected(User state, Current current) {
+        executeForSession(
+                state.session, () -> callback.userConnected(state, current));
+    }
+
+    @Override
+    public void userDisconnected(User state, Current current) {
+        executeForSession(
+                state.session, () -> callback.userDisconnected(state, current));
+    }
+
+    @Override
+    public void userTextMessage(User state, TextMessage message, Current current) {
+        executeForSession(
+                state.session,
+                () -> callback.userTextMessage(state, message, current));
+    }
+
+    @Override
+    public void channelCreated(Channel state, Current current) {
+        lanes.execute(channelLane(), () -> callback.channelCreated(state, current));
+    }
+
+    @Override
+    public void channelRemoved(Channel state, Current current) {
+        lanes.execute(channelLane(), () -> callback.channelRemoved(state, current));
+    }
+
+    @Override
+    public void channelStateChanged(Channel state, Current current) {
+        lanes.execute(channelLane(), () -> callback.channelStateChanged(state, current));
+    }
+}
@@ -0,0 +1,314 @@
+package icejar;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import MumbleServer.*;
+
+/**
+ * Cache of the members of the ACL groups of the channels of a virtual server.
+ * <p>
+ * The groups of a channel are requested with a single `getACL` call the first
+ * time any of them is looked up, and are kept until they expire or are
+ * invalidated. Concurrent lookups for a channel which isn't cached share a
+ * single request.
+ * <p>
+ * Icejar keeps a cache for the virtual server of each server configuration,
+ * which can be obtained from {@link ServerState#getGroupMembership()}. It is
+ * invalidated whenever a channel's state changes, and whenever a module calls
+ * `setACL`, `addUserToGroup` or `removeUserFromGroup` through the server
+ * passed to it, or through a {@link BatchServer} created for it. A change to
+ * a channel also invalidates its subchannels, which inherit its groups.
+ * Caches created with {@link #create} must be invalidated by their owner.
+ * <p>
+ * Like {@link IceHelper#getGroupMembers}, only the registered members of a
+ * group are considered, so the cache doesn't know about temporary members or
+ * special groups such as `all` or `auth`.
+ */
+public final class GroupMembershipCache {
+
+    /**
+     * Time for which the groups of a channel are cached by the caches which
+     * Icejar keeps, in milliseconds.
+     */
+    public static final long DEFAULT_TTL_MILLIS = 30000;
+
+    private final ServerPrx server;
+    private final ServerState mirror;
+    private final long ttlNanos;
+
+    private final Map<Integer, Entry> entries = new ConcurrentHashMap<>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    private static record Entry(
+            CompletableFuture<Map<String, Set<Integer>>> groups, long expiryTime) {}
+
+    GroupMembershipCache(ServerPrx server, ServerState mirror, long ttlNanos) {
+        this.server = server;
+        this.mirror = mirror;
+        this.ttlNanos = ttlNanos;
+    }
+
+    /**
+     * Create a cache of group members for the given virtual server.
+     *
+     * @param server The interface to the Mumble server
+     * @param ttl Time for which the groups of a channel are cached.
+     * @param unit Unit of `ttl`.
+     */
+    public static GroupMembershipCache create(
+            ServerPrx server, long ttl, TimeUnit unit)
+    {
+        return new GroupMembershipCache(server, null, unit.toNanos(ttl));
+    }
+
+    /**
+     * Return the registration IDs of users in the group with the given name
+     * in the given channel.
+     *
+     * @param channel The ID of the channel against which to check group
+     * membership
+     * @param groupName The name of group whose members will be returned
+     *
+     * @return The set of registrations IDs of the members of the given group
+     * in the given channel, which can't be modified.
+     */
+    public Set<Integer> getGroupMembers(int channel, String groupName)
+        throws Exception
+    {
+        return join(getGroupMembersAsync(channel, groupName));
+    }
+
+    /**
+     * Asynchronous version of {@link #getGroupMembers}.
+     * <p>
+     * If the groups have to be requested, the future is completed on Ice's
+     * client thread, so its stages must not make blocking calls to the Mumble
+     * server. {@link IceHelper#getGroupMembersAsync} has no such restriction.
+     *
+     * @param channel The ID of the channel against which to check group
+     * membership
+     * @param groupName The name of group whose members will be returned
+     *
+     * @return A future which completes with the set of registrations IDs of
+     * the members of the given group in the given channel.
+     */
+    public CompletableFuture<Set<Integer>> getGroupMembersAsync(
+            int channel, String groupName)
+    {
+        return getGroups(channel).thenApply(groups -> findMembers(groups, groupName));
+    }
+
+    /**
+     * Check whether the user with the given session ID is in any of the
+     * groups with the given names in the given channel. The groups are looked
+     * up together, with at most one request to the Mumble server.
+     *
+     * @param session The session ID of the user.
+     * @param channel The ID of the channel against which to check group
+     * membership
+     * @param groupNames The names of the groups to check.
+     *
+     * @return Whether the user is a member of at least one of the groups.
+     */
+    public boolean isMember(int session, int channel, String... groupNames)
+        throws Exception
+    {
+        User user = mirror != null ? mirror.getUser(session) : null;
+        if (user == null) {
+            user = server.getState(session);
+        }
+
+        if (user.userid < 0) {
+            // Unregistered users can't be registered members of a group.
+            return false;
+        }
+
+        Map<String, Set<Integer>> groups = join(getGroups(channel));
+        for (String groupName: groupNames) {
+            if (findMembers(groups, groupName).contains(user.userid)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Discard the cached groups of the given channel. If the cache is kept by
+     * Icejar, the groups of its subchannels are discarded as well, otherwise
+     * all cached groups are.
+     */
+    public void invalidate(int channel) {
+        if (mirror == null) {
+            invalidateAll();
+            return;
+        }
+
+        // Nothing needs to be looked up if no groups are cached, which is
+        // the case for most channel changes if groups are rarely checked.
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        for (int affectedChannel: mirror.getSubchannels(channel)) {
+            entries.remove(affectedChannel);
+        }
+    }
+
+    // Get the channel whose groups are changed by a request with the given
+    // method name and arguments, or null if it doesn't change any groups.
+    static Integer getChangedChannel(String methodName, Object[] args) {
+        if (
+                !methodName.startsWith("setACL")
+                && !methodName.startsWith("addUserToGroup")
+                && !methodName.startsWith("removeUserFromGroup"))
+        {
+            return null;
+        }
+
+        return args[0] instanceof Integer channel ? channel : null;
+    }
+
+    // Discard the groups of the given channel from the cache which Icejar
+    // keeps for the virtual server of the given view, if any, both now and
+    // once `completion` completes. Lookups made before a request completes
+    // may otherwise cache the groups from before it. `completion` may be
+    // null.
+    static void invalidateAfter(
+            ServerPrx view, int channel, CompletableFuture<?> completion)
+    {
+        ServerState state = ServerState.of(view);
+        if (state == null) {
+            return;
+        }
+
+        GroupMembershipCache groupMembership = state.getGroupMembership();
+        groupMembership.invalidate(channel);
+
+        if (completion != null) {
+            completion.whenComplete((r, e) -> groupMembership.invalidate(channel));
+        }
+    }
+
+    /**
+     * Discard all cached groups.
+     */
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    /**
+     * Get the number of lookups which were answered from the cache.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Get the number of lookups which required a request to the Mumble
+     * server.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Get the fraction of lookups which were answered from the cache, or 0 if
+     * there haven't been any lookups.
+     */
+    public double getHitRate() {
+        long hits = hitCount.get();
+        long lookups = hits + missCount.get();
+        return lookups > 0 ? (double) hits / lookups : 0;
+    }
+
+    private CompletableFuture<Map<String, Set<Integer>>> getGroups(int channel) {
+        CompletableFuture<Map<String, Set<Integer>>> groups = new CompletableFuture<>();
+
+        // Entries are replaced atomically, so concurrent lookups of a channel
+        // which isn't cached share the first lookup's request.
+        Entry entry = entries.compute(channel, (c, previousEntry) -> {
+            long now = System.nanoTime();
+            if (previousEntry != null && now - previousEntry.expiryTime() < 0) {
+                return previousEntry;
+            }
+            return new Entry(groups, now + ttlNanos);
+        });
+
+        if (entry.groups() != groups) {
+            hitCount.incrementAndGet();
+            return entry.groups();
+        }
+
+        missCount.incrementAndGet();
+        Entry newEntry = entry;
+
+        CompletableFuture<Server.GetACLResult> acl;
+        try {
+            acl = server.getACLAsync(channel);
+        } catch (RuntimeException e) {
+            // e.g. if the communicator has been destroyed.
+            acl = CompletableFuture.failedFuture(e);
+        }
+
+        acl.thenApply(result -> toGroupMap(result.groups)).whenComplete((groupMap, e) -> {
+            if (e != null) {
+                // Failed requests aren't cached, so the next lookup tries
+                // again.
+                entries.remove(channel, newEntry);
+                groups.completeExceptionally(e);
+            } else {
+                groups.complete(groupMap);
+            }
+        });
+
+        return groups;
+    }
+
+    private static Map<String, Set<Integer>> toGroupMap(Group[] groups) {
+        Map<String, Set<Integer>> groupMap = new HashMap<>();
+        for (Group group: groups) {
+            Set<Integer> members = new HashSet<>();
+            for (int id: group.members) {
+                members.add(id);
+            }
+            // The same group may be listed more than once, e.g. if it is
+            // both inherited and defined on the channel.
+            groupMap.merge(group.name, members, (previous, added) -> {
+                previous.addAll(added);
+                return previous;
+            });
+        }
+
+        groupMap.replaceAll((name, members) -> Collections.unmodifiableSet(members));
+        return groupMap;
+    }
+
+    private static Set<Integer> findMembers(
+            Map<String, Set<Integer>> groups, String groupName)
+    {
+        return groups.getOrDefault(groupName, Collections.emptySet());
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+}
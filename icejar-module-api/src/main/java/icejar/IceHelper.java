@@ -4,6 +4,10 @@ import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.zeroc.Ice.ObjectAdapter;
 import MumbleServer.*;
@@ -13,8 +17,26 @@ import MumbleServer.*;
  *
  * Use <code>import static icejar.IceHelper.*;</code> to make the helper methods
  * easily available to your module.
+ * <p>
+ * The futures returned by the asynchronous helpers are never completed on an
+ * Ice thread, so the stages which a module chains onto them may make blocking
+ * calls to the Mumble server. Results which have to be requested complete on
+ * a thread pool of Icejar's own. Results which are taken from the
+ * {@link ServerState} mirror are already complete when they are returned, so
+ * the stages chained onto them run on the calling thread.
+ * Futures returned directly by the `*Async` methods of Ice proxies are
+ * completed on Ice's single client thread, which is shared with other
+ * configured servers, and blocking calls in their stages deadlock it.
  */
 public final class IceHelper {
+    // Completes the futures returned by the asynchronous helpers.
+    private static final ExecutorService completionExecutor =
+        Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "icejar-ice-async");
+            thread.setDaemon(true);
+            return thread;
+        });
+
     private IceHelper() {}
 
     /**
@@ -23,7 +45,8 @@ public final class IceHelper {
     public static ServerCallbackPrx getServerCallback(
             ObjectAdapter adapter, ServerCallback callback)
     {
-        return ServerCallbackPrx.uncheckedCast(adapter.addWithUUID(callback));
+        return ServerCallbackPrx.uncheckedCast(
+                adapter.addWithUUID(CallbackDispatch.wrap(adapter, callback)));
     }
 
     /**
@@ -54,7 +77,7 @@ public final class IceHelper {
             ObjectAdapter adapter, ServerContextCallback callback)
     {
         return ServerContextCallbackPrx.uncheckedCast(
-                adapter.addWithUUID(callback));
+                adapter.addWithUUID(CallbackDispatch.wrap(adapter, callback)));
     }
 
     /**
@@ -86,12 +109,16 @@ public final class IceHelper {
 
     /**
      * Helper method to register an authenticator with Ice.
+     * <p>
+     * The authenticator is called on a separate thread rather than on the
+     * thread which dispatches requests from the Mumble server, so that it
+     * doesn't hold up server callbacks while it looks users up.
      */
     public static ServerAuthenticatorPrx getServerAuthenticator(
             ObjectAdapter adapter, ServerAuthenticator authenticator)
     {
         return ServerAuthenticatorPrx.uncheckedCast(
-                adapter.addWithUUID(authenticator));
+                adapter.addWithUUID(AuthenticatorDispatch.wrap(authenticator)));
     }
 
     /** 
@@ -173,9 +200,49 @@ public final class IceHelper {
         }
     }
 
+    /**
+     * Asynchronous version of {@link #sendMessageSameDestination}.
+     * <p>
+     * All of the messages are sent without waiting for the replies to the
+     * previous ones, so sending to many destinations takes about as long as
+     * sending to one.
+     *
+     * @param server Interface to the specific virtual server to which the
+     * text message will be sent.
+     * @param message Text message from which the destination for the new
+     * message will be copied.
+     *
+     * @return A future which completes once every message has been sent, or
+     * completes exceptionally if sending any of them failed.
+     */
+    public static CompletableFuture<Void> sendMessageSameDestinationAsync(
+            ServerPrx server, TextMessage message, String messageString)
+    {
+        int destinationCount =
+            message.sessions.length + message.channels.length
+            + message.trees.length;
+        CompletableFuture<?>[] replies = new CompletableFuture<?>[destinationCount];
+
+        int i = 0;
+        for (int session: message.sessions) {
+            replies[i++] = server.sendMessageAsync(session, messageString);
+        }
+        for (int channel: message.channels) {
+            replies[i++] = server.sendMessageChannelAsync(channel, false, messageString);
+        }
+        for (int tree: message.trees) {
+            replies[i++] = server.sendMessageChannelAsync(tree, true, messageString);
+        }
+
+        return completeOffIce(CompletableFuture.allOf(replies));
+    }
+
     /**
      * Return the registration IDs of users in the group with the given name
      * in the given channel.
+     * <p>
+     * If Icejar keeps a {@link ServerState} mirror of the server, the groups
+     * are looked up in its {@link GroupMembershipCache}.
      *
      * @param server The interface to the Mumble server
      * @param channel The ID of the channel against which to check group
@@ -187,9 +254,46 @@ public final class IceHelper {
      */
     public static Set<Integer> getGroupMembers(
             ServerPrx server, int channel, String groupName) throws Exception
+    {
+        ServerState state = ServerState.of(server);
+        if (state != null) {
+            return new HashSet<>(
+                    state.getGroupMembership().getGroupMembers(channel, groupName));
+        }
+
+        return findGroupMembers(server.getACL(channel).groups, groupName);
+    }
+
+    /**
+     * Asynchronous version of {@link #getGroupMembers}.
+     *
+     * @param server The interface to the Mumble server
+     * @param channel The ID of the channel against which to check group
+     * membership
+     * @param groupName The name of group whose members will be returned
+     *
+     * @return A future which completes with the set of registrations IDs of
+     * the members of the given group in the given channel.
+     */
+    public static CompletableFuture<Set<Integer>> getGroupMembersAsync(
+            ServerPrx server, int channel, String groupName)
+    {
+        ServerState state = ServerState.of(server);
+        if (state != null) {
+            return completeOffIce(state.getGroupMembership()
+                    .getGroupMembersAsync(channel, groupName)
+                    .thenApply(HashSet::new));
+        }
+
+        return completeOffIce(server.getACLAsync(channel)
+                .thenApply(acl -> findGroupMembers(acl.groups, groupName)));
+    }
+
+    private static Set<Integer> findGroupMembers(
+            Group[] groups, String groupName)
     {
         Set<Integer> groupUserIDs = new HashSet<>();
-        for (Group group: server.getACL(channel).groups) {
+        for (Group group: groups) {
             if (group.name.equals(groupName)) {
                 for (int id: group.members) {
                     groupUserIDs.add(id);
@@ -204,6 +308,9 @@ public final class IceHelper {
 
     /**
      * Return the currently connected users in the given channel.
+     * <p>
+     * If Icejar keeps a {@link ServerState} mirror of the server, the users
+     * are looked up in it instead of being requested from the Mumble server.
      *
      * @param server The interface to the Mumble server
      * @param channel The ID of the channel whose members will be returned
@@ -214,11 +321,40 @@ public final class IceHelper {
     public static Map<Integer, User> getUsersInChannel(
             ServerPrx server, int channel) throws Exception
     {
+        ServerState state = ServerState.of(server);
+        if (state != null) {
+            return state.getUsersInChannel(channel);
+        }
+
         Map<Integer, User> allUsers = server.getUsers();
         allUsers.entrySet().removeIf(e -> e.getValue().channel != channel);
         return allUsers;
     }
 
+    /**
+     * Asynchronous version of {@link #getUsersInChannel}.
+     *
+     * @param server The interface to the Mumble server
+     * @param channel The ID of the channel whose members will be returned
+     *
+     * @return A future which completes with a mapping from session IDs to
+     * user state objects for the users in the given channel on the given
+     * server.
+     */
+    public static CompletableFuture<Map<Integer, User>> getUsersInChannelAsync(
+            ServerPrx server, int channel)
+    {
+        ServerState state = ServerState.of(server);
+        if (state != null) {
+            return CompletableFuture.completedFuture(state.getUsersInChannel(channel));
+        }
+
+        return completeOffIce(server.getUsersAsync().thenApply(allUsers -> {
+            allUsers.entrySet().removeIf(e -> e.getValue().channel != channel);
+            return allUsers;
+        }));
+    }
+
     /**
      * Return the currently connected users in the given channel who are also
      * in the group with the given name in that channel.
@@ -242,9 +378,41 @@ public final class IceHelper {
         return usersInChannel;
     }
 
+    /**
+     * Asynchronous version of {@link #getUsersInGroup}.
+     * <p>
+     * The group members and the users in the channel are requested at the
+     * same time.
+     *
+     * @param server The interface to the Mumble server
+     * @param channel The ID of the channel whose members will be returned
+     * @param groupName The name of the group whose members will be returned
+     *
+     * @return A future which completes with a mapping from session IDs to user
+     * state objects for the users who are both in the given channel and the
+     * given group on the given server.
+     */
+    public static CompletableFuture<Map<Integer, User>> getUsersInGroupAsync(
+            ServerPrx server, int channel, String groupName)
+    {
+        // Each future is either already complete or completed on
+        // `completionExecutor`, so the combination runs on the calling thread
+        // or on `completionExecutor`, and never on an Ice thread.
+        return getGroupMembersAsync(server, channel, groupName).thenCombine(
+                getUsersInChannelAsync(server, channel),
+                (groupUserIDs, usersInChannel) -> {
+                    usersInChannel.entrySet().removeIf(
+                            e -> !groupUserIDs.contains(e.getValue().userid));
+                    return usersInChannel;
+                });
+    }
+
     /**
      * Return the set of channel IDs currently linked to the channel with the
      * given ID.
+     * <p>
+     * If Icejar keeps a {@link ServerState} mirror of the server, the links
+     * are looked up in it instead of being requested from the Mumble server.
      *
      * @param server The interface to the Mumble server
      * @param channel The ID of the channel whose links will be returned
@@ -255,12 +423,28 @@ public final class IceHelper {
     public static Set<Integer> getLinkedChannels(
             ServerPrx server, int channel) throws Exception
     {
+        Set<Integer> cachedLinks = getMirroredLinkedChannels(server, channel);
+        if (cachedLinks != null) {
+            return cachedLinks;
+        }
+
         int[] channels = { channel };
         Set<Integer> linkedChannels = new HashSet<>();
         recurseLinkedChannels(server, channels, linkedChannels);
         return Collections.unmodifiableSet(linkedChannels);
     }
 
+    private static Set<Integer> getMirroredLinkedChannels(
+            ServerPrx server, int channel)
+    {
+        ServerState state = ServerState.of(server);
+        if (state != null) {
+            return state.getLinkedChannels(channel);
+        } else {
+            return null;
+        }
+    }
+
     private static void recurseLinkedChannels(
             ServerPrx server, int[] channels, Set<Integer> linkedChannels)
             throws Exception
@@ -274,4 +458,67 @@ public final class IceHelper {
             }
         }
     }
+
+    /**
+     * Asynchronous version of {@link #getLinkedChannels}.
+     * <p>
+     * The states of all channels linked to a channel are requested at the
+     * same time, so the number of sequential round trips to the Mumble server
+     * depends on the length of the longest chain of links rather than on the
+     * number of linked channels.
+     *
+     * @param server The interface to the Mumble server
+     * @param channel The ID of the channel whose links will be returned
+     *
+     * @return A future which completes with a set of channel IDs that are
+     * linked to the channel with the given ID.
+     */
+    public static CompletableFuture<Set<Integer>> getLinkedChannelsAsync(
+            ServerPrx server, int channel)
+    {
+        Set<Integer> cachedLinks = getMirroredLinkedChannels(server, channel);
+        if (cachedLinks != null) {
+            return CompletableFuture.completedFuture(cachedLinks);
+        }
+
+        Set<Integer> linkedChannels = ConcurrentHashMap.newKeySet();
+        return completeOffIce(visitLinkedChannelsAsync(server, channel, linkedChannels)
+                .thenApply(v -> Collections.unmodifiableSet(new HashSet<>(linkedChannels))));
+    }
+
+    private static CompletableFuture<Void> visitLinkedChannelsAsync(
+            ServerPrx server, int channel, Set<Integer> linkedChannels)
+    {
+        if (!linkedChannels.add(channel)) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return server.getChannelStateAsync(channel).thenCompose(state -> {
+            CompletableFuture<?>[] links = new CompletableFuture<?>[state.links.length];
+            for (int i = 0; i < links.length; i++) {
+                links[i] = visitLinkedChannelsAsync(
+                        server, state.links[i], linkedChannels);
+            }
+
+            return CompletableFuture.allOf(links);
+        });
+    }
+
+    // Get a future which is completed like the given one, but on
+    // `completionExecutor`. `whenCompleteAsync` is used rather than e.g.
+    // `thenApplyAsync`, which would complete on the Ice thread on failure.
+    private static <T> CompletableFuture<T> completeOffIce(
+            CompletableFuture<T> future)
+    {
+        CompletableFuture<T> completion = new CompletableFuture<>();
+        future.whenCompleteAsync((result, e) -> {
+            if (e != null) {
+                completion.completeExceptionally(e);
+            } else {
+                completion.complete(result);
+            }
+        }, completionExecutor);
+
+        return completion;
+    }
 }
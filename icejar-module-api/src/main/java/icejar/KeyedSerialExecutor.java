@@ -0,0 +1,87 @@
+package icejar;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+// Runs tasks on an Executor so that tasks with different keys may run in
+// parallel, but tasks with the same key run one at a time, in the order in
+// which they were submitted.
+final class KeyedSerialExecutor {
+
+    private static final Logger logger = Logger.getLogger("icejar.callbacks");
+
+    // Key for the lane in which channel events are handled, which can't be
+    // equal to any session ID.
+    static final Object CHANNEL_LANE = new Object();
+
+    private final Executor executor;
+
+    // Only keys with pending tasks have a lane, so lanes for keys which are no
+    // longer used (e.g. sessions of users who disconnected) don't pile up.
+    private final Map<Object, Lane> lanes = new ConcurrentHashMap<>();
+
+    KeyedSerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    private final class Lane implements Runnable {
+        private final Object key;
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+        private Lane(Object key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            Runnable task;
+            while ((task = nextTask()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    // Nothing is waiting for the task, so it is only logged,
+                    // as Ice would for a callback it dispatched itself.
+                    logger.log(Level.WARNING, "Callback threw:", e);
+                }
+            }
+        }
+
+        // Take the next task, removing the lane once it has none left. The
+        // map is updated atomically with the queue, so a task submitted at
+        // the same time either lands in this lane or starts a new one.
+        private Runnable nextTask() {
+            Runnable[] task = new Runnable[1];
+
+            lanes.compute(key, (k, lane) -> {
+                task[0] = tasks.poll();
+                return task[0] != null ? this : null;
+            });
+
+            return task[0];
+        }
+    }
+
+    void execute(Object key, Runnable task) {
+        boolean[] isNewLane = new boolean[1];
+
+        Lane lane = lanes.compute(key, (k, existing) -> {
+            Lane l = existing;
+            if (l == null) {
+                l = new Lane(k);
+                isNewLane[0] = true;
+            }
+            l.tasks.add(task);
+            return l;
+        });
+
+        if (isNewLane[0]) {
+            executor.execute(lane);
+        }
+    }
+}
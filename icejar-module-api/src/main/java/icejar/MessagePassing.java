@@ -1,6 +1,12 @@
 package icejar;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 
 /**
@@ -13,9 +19,14 @@ import java.util.function.Consumer;
  * A Sender sends messages to other Module instances while Receiver receives
  * incoming messages from Senders.
  * <p>
- * All message passing is done between Module instances for the <i>same</i>
- * Mumble server, i.e. a message will be received by an instance of Module
- * which shares a Mumble server with the sender.
+ * By default, message passing is done between Module instances for the
+ * <i>same</i> Mumble server, i.e. a message will be received by an instance of
+ * Module which shares a Mumble server with the sender. A Sender for a Module
+ * on another server can be obtained by naming that server explicitly, but its
+ * messages are only delivered if the configuration of the receiving server
+ * accepts messages from the sending server. Messages sent to another server
+ * are passed within the same process, exactly like messages sent on the same
+ * server.
  * <p>
  * The motivating use-case behind this API is to enable shared functionality
  * between Modules which would otherwise lead to conflicts if the functionality
@@ -28,10 +39,12 @@ import java.util.function.Consumer;
  * set users' names directly can now pass a message to the dedicated
  * name-changing Module which contains the changes to make.
  * <p>
- * The message passing API is only designed to facilitate one-way interactions
- * rather than bi-directional communication between Modules. The intended usage
- * of the API is only for Modules which provide some re-usable functionality to
- * accept messages from Modules which use this functionality.
+ * The message passing API is mainly designed to facilitate one-way
+ * interactions rather than bi-directional communication between Modules. The
+ * intended usage of the API is only for Modules which provide some re-usable
+ * functionality to accept messages from Modules which use this functionality.
+ * Where a Module needs an answer from the functionality it uses, a Requester
+ * can send a request to a Responder and receive its reply.
  *
  * Tight coupling of/cyclic dependencies between Modules are discouraged, since
  * Icejar makes no guarantees about which Modules are loaded at any given time.
@@ -51,7 +64,10 @@ import java.util.function.Consumer;
  * for record classes: if a record is sent to a Receiver which expects records,
  * as long as the fields of the two records classes are the same, the message
  * will be converted into an instance of the class expected by the Receiver,
- * even if the actual classes differ.
+ * even if the actual classes differ. Arrays, and record members which are
+ * Lists, Sets or Maps, are converted element by element. Values which already
+ * have the expected type, such as arrays of primitives, are passed on without
+ * being copied.
  * <p>
  * A "channel" is simply the means by which the Receivers of a Module are
  * differentiated from one another. In order to receive messages of different
@@ -62,6 +78,29 @@ import java.util.function.Consumer;
  * Each Sender is created with the name of Module to which it sends messages
  * and the channel over which the messages are sent. Any number of Senders can
  * be created for a single Receiver.
+ * <p>
+ * By default, a message is handled on the thread which sent it, before the
+ * call to `send()` returns. A queued Receiver instead places incoming messages
+ * in a bounded queue and handles them in order on a separate thread, so a slow
+ * handler does not hold up the sending Module. When the queue is full, further
+ * messages are rejected until there is room for them again.
+ * <p>
+ * Besides sending messages to a single Receiver, a Publisher can publish
+ * messages on a named "topic". Each Module on the same Mumble server can
+ * subscribe to any number of topics, and every subscription receives its own
+ * copy of each message published on its topic. Subscriptions are always
+ * queued, so each subscriber handles messages on its own thread, and an
+ * OverflowPolicy decides what happens to new messages when a subscriber's
+ * queue is full. This way a slow subscriber never holds up the others.
+ * <p>
+ * Requesters and Responders are created with channels in the same way as
+ * Senders and Receivers, but a Responder does not replace a Receiver on the
+ * same channel. Requests are handled on a separate thread, and replies are
+ * converted into the class expected by the Requester in the same way as
+ * messages are converted for a Receiver. Each Requester limits the number of
+ * its requests which can be waiting for a reply at once. A request counts
+ * against that limit until the Responder's handler has returned, even if the
+ * request timed out.
  *
  * @see Module#setupMessagePassing
  * @see Record
@@ -86,6 +125,18 @@ public final class MessagePassing {
          */
         <T> Sender<T> getSender(String moduleName, String channel);
 
+        /**
+         * Get a Sender to send messages to the module with the given name via
+         * the given channel on the server with the given name.
+         * <p>
+         * Server names are the names of server configurations, i.e. the name
+         * of the server configured in `my_server.toml` is `my_server`.
+         * Messages are only delivered if the receiving server's configuration
+         * lists the current server in `accept_messages_from`.
+         */
+        <T> Sender<T> getSender(
+                String serverName, String moduleName, String channel);
+
         /**
          * Get a Receiver for the current module which receives messages of
          * type `cls` via the default channel.
@@ -97,6 +148,117 @@ public final class MessagePassing {
          * type `cls` via the given channel.
          */
         <T> Receiver<T> getReceiver(String channel, Class<T> cls);
+
+        /**
+         * Get a Receiver for the current module which receives messages of
+         * type `cls` via the default channel and handles them with the given
+         * handler.
+         */
+        <T> Receiver<T> getReceiver(Class<T> cls, Consumer<T> handler);
+
+        /**
+         * Get a Receiver for the current module which receives messages of
+         * type `cls` via the given channel and handles them with the given
+         * handler.
+         */
+        <T> Receiver<T> getReceiver(
+                String channel, Class<T> cls, Consumer<T> handler);
+
+        /**
+         * Get a queued Receiver for the current module which receives messages
+         * of type `cls` via the default channel.
+         *
+         * @param queueCapacity The maximum number of messages which can be
+         * waiting to be handled at once. Must be at least 1.
+         */
+        <T> Receiver<T> getQueuedReceiver(Class<T> cls, int queueCapacity);
+
+        /**
+         * Get a queued Receiver for the current module which receives messages
+         * of type `cls` via the given channel.
+         *
+         * @param queueCapacity The maximum number of messages which can be
+         * waiting to be handled at once. Must be at least 1.
+         */
+        <T> Receiver<T> getQueuedReceiver(
+                String channel, Class<T> cls, int queueCapacity);
+
+        /**
+         * Get statistics for every channel on the current Mumble server which
+         * has a Receiver or Responder, or for which a Sender or Requester is
+         * still in use.
+         */
+        List<ChannelStats> getChannelStats();
+
+        /**
+         * Get statistics for the given channel of the module with the given
+         * name.
+         */
+        ChannelStats getChannelStats(String moduleName, String channel);
+
+        /**
+         * Get statistics for every module which has subscribed to the given
+         * topic on the current Mumble server. The `channel` of each entry is
+         * the name of the topic.
+         */
+        List<ChannelStats> getTopicStats(String topic);
+
+        /**
+         * Get a Publisher to publish messages on the given topic.
+         */
+        <T> Publisher<T> getPublisher(String topic);
+
+        /**
+         * Subscribe the current module to the given topic, receiving
+         * messages of type `cls`.
+         * <p>
+         * A module has at most one subscription to each topic. Subscribing
+         * to the same topic again replaces the previous subscription.
+         *
+         * @param queueCapacity The maximum number of messages which can be
+         * waiting to be handled at once. Must be at least 1.
+         * @param overflowPolicy What happens to a new message when the queue
+         * is full.
+         *
+         * @return The Receiver for the subscription, whose handler will
+         * receive the messages published on the topic.
+         */
+        <T> Receiver<T> subscribe(
+                String topic, Class<T> cls, int queueCapacity,
+                OverflowPolicy overflowPolicy);
+
+        /**
+         * Get a Requester to send requests to the module with the given name
+         * via the default channel and receive replies of type `cls`.
+         *
+         * @param maxInFlight The maximum number of requests which can be
+         * waiting for a reply at once. Must be at least 1.
+         */
+        <Q, R> Requester<Q, R> getRequester(
+                String moduleName, Class<R> cls, int maxInFlight);
+
+        /**
+         * Get a Requester to send requests to the module with the given name
+         * via the given channel and receive replies of type `cls`.
+         *
+         * @param maxInFlight The maximum number of requests which can be
+         * waiting for a reply at once. Must be at least 1.
+         */
+        <Q, R> Requester<Q, R> getRequester(
+                String moduleName, String channel, Class<R> cls,
+                int maxInFlight);
+
+        /**
+         * Get a Responder for the current module which receives requests of
+         * type `cls` via the default channel.
+         */
+        <Q, R> Responder<Q, R> getResponder(Class<Q> cls);
+
+        /**
+         * Get a Responder for the current module which receives requests of
+         * type `cls` via the given channel.
+         */
+        <Q, R> Responder<Q, R> getResponder(String channel, Class<Q> cls);
     }
 
     /**
@@ -109,9 +271,26 @@ public final class MessagePassing {
          * @return Whether or not the message was sent successfully. This can
          * fail if the message queue for the Receiver is full, if the
          * message's type is incompatible with the Receiver to which it was
-         * sent, or if there exists no corresponding Receiver for this Sender.
+         * sent, if there exists no corresponding Receiver for this Sender, or
+         * if the Receiver's server does not accept messages from this
+         * Sender's server.
          */
         boolean send(T message);
+
+        /**
+         * Send several messages to a Receiver at once.
+         * <p>
+         * The messages are converted together and, if the Receiver has a
+         * batch handler, passed to it as a single List. This is cheaper than
+         * calling `send()` for each message.
+         *
+         * @return The number of messages which were sent successfully. No
+         * messages are sent if any of them has a type incompatible with the
+         * Receiver. If the Receiver's message queue fills up, each message
+         * is handled according to the queue's overflow policy, as if it had
+         * been sent with `send()`.
+         */
+        int sendAll(Collection<? extends T> messages);
     }
 
     /**
@@ -120,7 +299,149 @@ public final class MessagePassing {
     public static interface Receiver<T> {
         /**
          * Set a method which will handle incoming messages.
+         * <p>
+         * The handler of a queued Receiver is called from a thread managed by
+         * Icejar rather than from the thread of the Sender.
          */
         void setHandler(Consumer<T> handler);
+
+        /**
+         * Set a method which will handle several incoming messages at once.
+         * <p>
+         * Messages sent together with `Sender.sendAll()`, or waiting together
+         * in the queue of a queued Receiver, are passed to the batch handler
+         * as a single List. If a handler was also set with `setHandler()`,
+         * messages sent with `Sender.send()` are passed to that handler
+         * instead.
+         */
+        void setBatchHandler(Consumer<List<T>> batchHandler);
+    }
+
+    /**
+     * Statistics for a single channel, or for the subscription of a single
+     * module to a topic, counted since the channel was first used.
+     * Statistics are kept when the module which owns the channel is
+     * reloaded.
+     *
+     * @param moduleName The name of the module which owns the channel.
+     * @param channel The name of the channel.
+     * @param sent The number of messages sent to the channel.
+     * @param delivered The number of messages passed to a handler.
+     * @param conversionFailures The number of messages which could not be
+     * converted into the type expected by the Receiver.
+     * @param missingReceiverDrops The number of messages dropped because
+     * there was no Receiver or the Receiver had no handler.
+     * @param queueRejections The number of messages rejected or dropped
+     * because the queue of a queued Receiver was full.
+     * @param handlerFailures The number of messages whose handler threw an
+     * exception on the thread of a queued Receiver.
+     * @param latencyHistogram The number of handler calls by how long they
+     * took. Entry `i` counts calls which took less than 2<sup>i</sup>
+     * nanoseconds, but at least 2<sup>i-1</sup> nanoseconds.
+     */
+    public static record ChannelStats(
+            String moduleName, String channel, long sent, long delivered,
+            long conversionFailures, long missingReceiverDrops,
+            long queueRejections, long handlerFailures,
+            long[] latencyHistogram)
+    {
+        /**
+         * Estimate the handler latency at the given percentile.
+         *
+         * @param percentile A value between 0 and 100.
+         *
+         * @return An upper bound in nanoseconds for the latency of the given
+         * percentage of handler calls, or 0 if no calls have been recorded.
+         */
+        public long latencyPercentile(double percentile) {
+            long total = Arrays.stream(latencyHistogram).sum();
+            long threshold = (long) Math.ceil(total * percentile / 100.0);
+            long count = 0;
+
+            for (int i = 0; i < latencyHistogram.length; i++) {
+                count += latencyHistogram[i];
+
+                if (count > 0 && count >= threshold) {
+                    return i < Long.SIZE - 1 ? 1L << i : Long.MAX_VALUE;
+                }
+            }
+
+            return 0;
+        }
+    }
+
+    /**
+     * Publishes messages to every subscriber of a topic.
+     */
+    public static interface Publisher<T> {
+        /**
+         * Publish a message to the subscribers of this Publisher's topic.
+         * <p>
+         * The message is converted once for each distinct message type
+         * expected by the subscribers.
+         *
+         * @return The number of subscribers which accepted the message. A
+         * subscriber rejects the message if its type is incompatible, or if
+         * its queue is full and it uses `OverflowPolicy.DROP_NEWEST`.
+         */
+        int publish(T message);
+    }
+
+    /**
+     * What a subscription does with a new message while its queue is full.
+     */
+    public static enum OverflowPolicy {
+        /** Reject the new message. */
+        DROP_NEWEST,
+        /** Discard the oldest queued message to make room for the new one. */
+        DROP_OLDEST,
+    }
+
+    /**
+     * Sends requests and receives their replies.
+     */
+    public static interface Requester<Q, R> {
+        /**
+         * Send a request to a Responder.
+         *
+         * @return A future which completes with the reply to the request. It
+         * completes exceptionally if there are too many requests in flight,
+         * if there exists no corresponding Responder for this Requester, if
+         * the types of the request or reply are incompatible, or if the
+         * Responder's handler threw an exception.
+         */
+        CompletableFuture<R> request(Q message);
+
+        /**
+         * Send a request to a Responder which must be answered within the
+         * given time.
+         *
+         * If no reply arrives in time, the Responder's handler is interrupted,
+         * or never called if it hasn't started yet. The same happens if the
+         * returned future is cancelled.
+         *
+         * @return A future which completes with the reply to the request, or
+         * completes exceptionally with a `TimeoutException` if no reply
+         * arrived in time.
+         *
+         * @see #request(Object)
+         */
+        CompletableFuture<R> request(Q message, long timeout, TimeUnit unit);
+    }
+
+    /**
+     * Receives requests and replies to them.
+     */
+    public static interface Responder<Q, R> {
+        /**
+         * Set a method which will handle incoming requests. The value it
+         * returns is the reply to the request.
+         * <p>
+         * The handler is called from a thread managed by Icejar rather than
+         * from the thread of the Requester. The threads which call handlers
+         * are shared by all Responders and limited in number, so handlers
+         * should not block for long, and should stop when interrupted.
+         */
+        void setHandler(Function<Q, R> handler);
     }
 }
@@ -28,11 +28,17 @@ public interface Module {
     /**
      * Set up a Module when a connection is established.
      * <p>
-     * Be aware that the connection to the server will be closed and re-opened
-     * when modules for a Client are reloaded. Even if a specific Module was not
-     * reloaded, its connection will still be interrupted and its
-     * <code>setup()</code> method will be called. <code>setup()</code> should
-     * be implemented with the knowledge that it may be called several times.
+     * When a module is reloaded, only the reloaded Module is set up again; the
+     * connection to the server and other Modules are not affected. However,
+     * <code>setup()</code> is called again whenever the connection to the
+     * server is re-established, or when the configuration of this Module
+     * changes. Callbacks registered through the previous adapter are removed
+     * before this happens. <code>setup()</code> should be implemented with the
+     * knowledge that it may be called several times.
+     * <p>
+     * The Modules of a Client are set up concurrently. A Module whose
+     * <code>setup()</code> takes longer than the configured
+     * <code>setup_timeout</code> is interrupted and marked as failed.
      *
      * @param config The parsed configuration for the Client to which this
      * Module instance belongs.
@@ -0,0 +1,409 @@
+package icejar;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.zeroc.Ice.Current;
+import MumbleServer.*;
+
+/**
+ * Local mirror of the users and channels of a virtual server.
+ * <p>
+ * Icejar keeps a mirror for the virtual server of each server configuration.
+ * It is loaded from the Mumble server once per connection, before modules are
+ * set up, and is kept up to date from server callbacks afterwards, so looking
+ * up users and channels in it doesn't require any requests to the Mumble
+ * server. Use {@link #of(ServerPrx)} to get the mirror for the server passed
+ * to a module.
+ * <p>
+ * The Mumble server drops its callbacks when the virtual server is stopped,
+ * so the mirror is marked as stale then, and is loaded again once the virtual
+ * server has been started again. While it is stale, {@link #of(ServerPrx)}
+ * returns null.
+ * <p>
+ * The views returned by the mirror can't be modified, but reflect later
+ * changes to the mirror. The `User` and `Channel` objects in them are shared
+ * and must not be modified. Changes arrive asynchronously, so the mirror may
+ * briefly lag behind the Mumble server.
+ * <p>
+ * {@link IceHelper#getUsersInChannel}, {@link IceHelper#getUsersInGroup} and
+ * {@link IceHelper#getLinkedChannels} use the mirror automatically when it is
+ * available.
+ */
+public final class ServerState {
+
+    private static final Map<ServerPrx, ServerState> mirrors =
+        Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final Map<Integer, User> usersBySession = new ConcurrentHashMap<>();
+    private final Map<Integer, User> usersByUserID = new ConcurrentHashMap<>();
+    private final Map<Integer, Map<Integer, User>> usersByChannel = new ConcurrentHashMap<>();
+    private final Map<Integer, Channel> channels = new ConcurrentHashMap<>();
+    // IDs of the channels directly below each channel, so that finding the
+    // subchannels of a channel doesn't need to look at every channel.
+    private final Map<Integer, Set<Integer>> childrenByParent = new ConcurrentHashMap<>();
+    private final ChannelLinkGraph linkGraph = new ChannelLinkGraph();
+
+    private final ServerPrx server;
+    private final GroupMembershipCache groupMembership;
+
+    private final ServerCallback updater = new Updater();
+
+    // Updates which arrive while the mirror is being loaded, or null once it
+    // has been loaded.
+    private List<Consumer<ServerState>> pendingUpdates = new ArrayList<>();
+    // Counts the loads, so that only the snapshot of the latest one is used.
+    private int loadCount;
+
+    ServerState(ServerPrx server) {
+        this.server = server;
+        this.groupMembership = new GroupMembershipCache(
+                server, this,
+                TimeUnit.MILLISECONDS.toNanos(GroupMembershipCache.DEFAULT_TTL_MILLIS));
+    }
+
+    /**
+     * Get the mirror of the given virtual server, or null if Icejar doesn't
+     * keep one for it (e.g. because the proxy wasn't passed to a module by
+     * Icejar) or it hasn't been loaded yet.
+     *
+     * @param server The interface to the Mumble server passed to a module.
+     */
+    public static ServerState of(ServerPrx server) {
+        if (server == null) {
+            return null;
+        }
+
+        ServerState state = mirrors.get(server);
+        if (state != null && state.isLoaded()) {
+            return state;
+        } else {
+            return null;
+        }
+    }
+
+    // Make the mirror available to modules which are given `server`, or stop
+    // making any mirror available to them if `state` is null.
+    static void register(ServerPrx server, ServerState state) {
+        if (state != null) {
+            mirrors.put(server, state);
+        } else {
+            mirrors.remove(server);
+        }
+    }
+
+    // The callback through which the mirror is kept up to date.
+    ServerCallback getUpdater() {
+        return updater;
+    }
+
+    // Load the users and channels of the server, replacing any which were
+    // loaded before. The updater should receive callbacks before this is
+    // called, so that no change is missed.
+    CompletableFuture<Void> load() {
+        int load;
+        synchronized (this) {
+            markStale();
+            load = ++loadCount;
+        }
+
+        CompletableFuture<Map<Integer, User>> users = server.getUsersAsync();
+        CompletableFuture<Map<Integer, Channel>> channels = server.getChannelsAsync();
+
+        return users.thenAcceptBoth(channels, (u, c) -> loaded(load, u, c));
+    }
+
+    // Stop making the mirror available until it is loaded again, e.g. because
+    // callbacks are no longer delivered to the updater.
+    synchronized void markStale() {
+        if (pendingUpdates == null) {
+            pendingUpdates = new ArrayList<>();
+        }
+    }
+
+    private synchronized void loaded(
+            int load, Map<Integer, User> users, Map<Integer, Channel> channels)
+    {
+        // A later load was started before this one completed, so this
+        // snapshot may be older than the updates which have arrived since.
+        if (load != loadCount) {
+            return;
+        }
+
+        usersBySession.clear();
+        usersByUserID.clear();
+        usersByChannel.clear();
+        this.channels.clear();
+        childrenByParent.clear();
+        groupMembership.invalidateAll();
+
+        for (User user: users.values()) {
+            putUser(user);
+        }
+        this.channels.putAll(channels);
+        for (Channel channel: channels.values()) {
+            addChild(channel);
+        }
+        linkGraph.putChannels(channels);
+
+        // Updates which were sent while the snapshot was being taken may be
+        // older than it, but any later update for the same user or channel
+        // replaces them again.
+        for (Consumer<ServerState> update: pendingUpdates) {
+            update.accept(this);
+        }
+        pendingUpdates = null;
+    }
+
+    /**
+     * Check whether the mirror has been loaded from the Mumble server.
+     */
+    public synchronized boolean isLoaded() {
+        return pendingUpdates == null;
+    }
+
+    /**
+     * Get the connected users, by session ID.
+     */
+    public Map<Integer, User> getUsers() {
+        return Collections.unmodifiableMap(usersBySession);
+    }
+
+    /**
+     * Get the connected user with the given session ID, or null if there is
+     * none.
+     */
+    public User getUser(int session) {
+        return usersBySession.get(session);
+    }
+
+    /**
+     * Get the connected user who is registered with the given user ID, or
+     * null if there is none.
+     */
+    public User getRegisteredUser(int userid) {
+        return usersByUserID.get(userid);
+    }
+
+    /**
+     * Get the connected registered users, by user ID.
+     */
+    public Map<Integer, User> getRegisteredUsers() {
+        return Collections.unmodifiableMap(usersByUserID);
+    }
+
+    /**
+     * Get the users in the given channel, by session ID.
+     *
+     * @param channel The ID of the channel whose members will be returned
+     *
+     * @return A copy of the mapping from session IDs to user state objects for
+     * the users in the given channel, which may be modified.
+     */
+    public Map<Integer, User> getUsersInChannel(int channel) {
+        Map<Integer, User> users = usersByChannel.get(channel);
+        if (users != null) {
+            return new HashMap<>(users);
+        } else {
+            return new HashMap<>();
+        }
+    }
+
+    /**
+     * Get the channels, by channel ID.
+     */
+    public Map<Integer, Channel> getChannels() {
+        return Collections.unmodifiableMap(channels);
+    }
+
+    /**
+     * Get the channel with the given ID, or null if there is none.
+     */
+    public Channel getChannel(int channel) {
+        return channels.get(channel);
+    }
+
+    /**
+     * Get the IDs of the channels which are linked to the given channel,
+     * directly or through other channels, including the channel itself.
+     *
+     * @param channel The ID of the channel whose links will be returned
+     *
+     * @return A set of channel IDs which can't be modified, or null if there
+     * is no channel with the given ID.
+     */
+    public Set<Integer> getLinkedChannels(int channel) {
+        return linkGraph.getLinkedChannels(channel);
+    }
+
+    /**
+     * Get the IDs of the given channel and of all channels below it.
+     *
+     * @param channel The ID of the channel whose subchannels will be returned
+     *
+     * @return A set of channel IDs, which is empty if there is no channel with
+     * the given ID.
+     */
+    public Set<Integer> getSubchannels(int channel) {
+        Set<Integer> subchannels = new HashSet<>();
+        if (!channels.containsKey(channel)) {
+            return subchannels;
+        }
+
+        Deque<Integer> unvisited = new ArrayDeque<>();
+        subchannels.add(channel);
+        unvisited.add(channel);
+
+        while (!unvisited.isEmpty()) {
+            for (int child: childrenByParent.getOrDefault(unvisited.remove(), Set.of())) {
+                if (subchannels.add(child)) {
+                    unvisited.add(child);
+                }
+            }
+        }
+
+        return subchannels;
+    }
+
+    /**
+     * Get the cache of ACL group members which Icejar keeps for the virtual
+     * server.
+     */
+    public GroupMembershipCache getGroupMembership() {
+        return groupMembership;
+    }
+
+    // Must be called while synchronized on this ServerState.
+    private void putChannel(Channel channel) {
+        // The ACL of a channel may have changed, and its groups are inherited
+        // by its subchannels.
+        groupMembership.invalidate(channel.id);
+
+        Channel previous = channels.put(channel.id, channel);
+        if (previous == null || previous.parent != channel.parent) {
+            if (previous != null) {
+                removeChild(previous);
+            }
+            addChild(channel);
+        }
+        linkGraph.putChannel(channel);
+    }
+
+    // Must be called while synchronized on this ServerState.
+    private void removeChannel(int channel) {
+        groupMembership.invalidate(channel);
+
+        Channel previous = channels.remove(channel);
+        if (previous != null) {
+            removeChild(previous);
+        }
+        linkGraph.removeChannel(channel);
+    }
+
+    // Must be called while synchronized on this ServerState.
+    private void addChild(Channel channel) {
+        childrenByParent
+            .computeIfAbsent(channel.parent, parent -> ConcurrentHashMap.newKeySet())
+            .add(channel.id);
+    }
+
+    // Must be called while synchronized on this ServerState.
+    private void removeChild(Channel channel) {
+        Set<Integer> siblings = childrenByParent.get(channel.parent);
+        if (siblings != null) {
+            siblings.remove(channel.id);
+            if (siblings.isEmpty()) {
+                childrenByParent.remove(channel.parent);
+            }
+        }
+    }
+
+    // Apply an update now, or once the mirror has been loaded.
+    private synchronized void update(Consumer<ServerState> update) {
+        if (pendingUpdates != null) {
+            pendingUpdates.add(update);
+        } else {
+            update.accept(this);
+        }
+    }
+
+    // Must be called while synchronized on this ServerState.
+    private void putUser(User user) {
+        removeUser(user.session);
+
+        usersBySession.put(user.session, user);
+        if (user.userid >= 0) {
+            usersByUserID.put(user.userid, user);
+        }
+        usersByChannel
+            .computeIfAbsent(user.channel, channel -> new ConcurrentHashMap<>())
+            .put(user.session, user);
+    }
+
+    // Must be called while synchronized on this ServerState.
+    private void removeUser(int session) {
+        User user = usersBySession.remove(session);
+        if (user == null) {
+            return;
+        }
+
+        if (user.userid >= 0) {
+            usersByUserID.remove(user.userid, user);
+        }
+
+        Map<Integer, User> usersInChannel = usersByChannel.get(user.channel);
+        if (usersInChannel != null) {
+            usersInChannel.remove(session);
+            if (usersInChannel.isEmpty()) {
+                usersByChannel.remove(user.channel);
+            }
+        }
+    }
+
+    private final class Updater implements ServerCallback {
+        @Override
+        public void userConnected(User state, Current current) {
+            update(mirror -> mirror.putUser(state));
+        }
+
+        @Override
+        public void userDisconnected(User state, Current current) {
+            update(mirror -> mirror.removeUser(state.session));
+        }
+
+        @Override
+        public void userStateChanged(User state, Current current) {
+            update(mirror -> mirror.putUser(state));
+        }
+
+        @Override
+        public void userTextMessage(User state, TextMessage message, Current current) {}
+
+        @Override
+        public void channelCreated(Channel state, Current current) {
+            update(mirror -> mirror.putChannel(state));
+        }
+
+        @Override
+        public void channelRemoved(Channel state, Current current) {
+            update(mirror -> mirror.removeChannel(state.id));
+        }
+
+        @Override
+        public void channelStateChanged(Channel state, Current current) {
+            update(mirror -> mirror.putChannel(state));
+        }
+    }
+}
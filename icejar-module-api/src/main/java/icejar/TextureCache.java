@@ -0,0 +1,325 @@
+package icejar;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * Size-bounded cache of user textures (avatars), for authenticators which
+ * implement `idToTexture` and `setTexture`.
+ * <p>
+ * Textures are stored outside of the Java heap, in direct buffers, so that
+ * large textures don't add to the work of the garbage collector while they
+ * are cached. Textures are keyed by user ID and by a hash of their content,
+ * so users with the same texture share a single buffer. When the total size
+ * of the cached textures exceeds the maximum, the textures of the least
+ * recently used users are evicted.
+ * <p>
+ * Ice sends textures from `byte[]` arrays, so {@link #get} copies the texture
+ * into a new array for each request. {@link #getBuffer} gives read-only access
+ * to the cached texture without copying it.
+ * <p>
+ * Example:
+ * <pre>{@code
+ * private final TextureCache textures = TextureCache.create(64 * 1024 * 1024);
+ *
+ * public byte[] idToTexture(int id, Current current) {
+ *     return textures.get(id, database::loadTexture);
+ * }
+ *
+ * public int setTexture(int id, byte[] tex, Current current) {
+ *     database.storeTexture(id, tex);
+ *     textures.put(id, tex);
+ *     return 1;
+ * }
+ * }</pre>
+ */
+public final class TextureCache {
+
+    private static final ByteBuffer EMPTY_TEXTURE = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+    private final long maxSize;
+    private long size;
+
+    // Content hashes of the cached textures of users, least recently used
+    // first.
+    private final LinkedHashMap<Integer, ContentHash> hashesByUser =
+        new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<ContentHash, Content> contentByHash = new HashMap<>();
+    // Loads of textures which weren't cached, by user ID.
+    private final Map<Integer, Load> loadsByUser = new HashMap<>();
+
+    private long hitCount;
+    private long missCount;
+
+    private static record ContentHash(ByteBuffer digest) {}
+
+    private static final class Content {
+        private final ByteBuffer buffer;
+        private int userCount;
+
+        private Content(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    private static final class Load {
+        private int count;
+        // Whether the user's texture was put or removed since the load
+        // started, in which case the loaded texture may be outdated.
+        private boolean isOutdated;
+    }
+
+    private TextureCache(long maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Maximum size must not be negative");
+        }
+
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Create a texture cache.
+     *
+     * @param maxSize Maximum total size in bytes of the cached textures.
+     */
+    public static TextureCache create(long maxSize) {
+        return new TextureCache(maxSize);
+    }
+
+    /**
+     * Get the texture of the given user, loading and caching it if it isn't
+     * cached.
+     *
+     * @param userId The user ID of the user.
+     * @param loader Method which loads the texture of a user, e.g. from a
+     * database, returning an empty array or null if the user has no texture.
+     *
+     * @return A copy of the texture, which is empty if the user has no
+     * texture.
+     */
+    public byte[] get(int userId, IntFunction<byte[]> loader) {
+        ByteBuffer buffer;
+        synchronized (this) {
+            buffer = getBuffer(userId);
+            if (buffer == null) {
+                loadsByUser.computeIfAbsent(userId, id -> new Load()).count++;
+            }
+        }
+
+        if (buffer == null) {
+            // The loader isn't called while holding the lock, so concurrent
+            // requests for a texture which isn't cached may each load it.
+            byte[] texture;
+            try {
+                texture = loader.apply(userId);
+            } catch (RuntimeException | Error e) {
+                synchronized (this) {
+                    finishLoad(userId);
+                }
+                throw e;
+            }
+            if (texture == null) {
+                texture = new byte[0];
+            }
+
+            ContentHash hash = hash(texture);
+            synchronized (this) {
+                // A texture which was put while this one was being loaded is
+                // newer, and must not be replaced by it.
+                if (!finishLoad(userId)) {
+                    store(userId, texture, hash);
+                }
+            }
+            return texture;
+        }
+
+        byte[] texture = new byte[buffer.remaining()];
+        buffer.get(texture);
+        return texture;
+    }
+
+    /**
+     * Get read-only access to the cached texture of the given user, without
+     * copying it.
+     *
+     * @param userId The user ID of the user.
+     *
+     * @return A read-only buffer containing the texture, which is empty if the
+     * user has no texture, or null if the user's texture isn't cached.
+     */
+    public synchronized ByteBuffer getBuffer(int userId) {
+        ContentHash hash = hashesByUser.get(userId);
+        if (hash == null) {
+            missCount++;
+            return null;
+        }
+
+        hitCount++;
+        return contentByHash.get(hash).buffer.duplicate();
+    }
+
+    /**
+     * Cache the texture of the given user, replacing any texture which was
+     * cached for them before. This should be called whenever a user's
+     * texture is changed.
+     *
+     * @param userId The user ID of the user.
+     * @param texture The texture, or an empty array if the user has no
+     * texture.
+     */
+    public void put(int userId, byte[] texture) {
+        // Hashing large textures doesn't need the lock.
+        ContentHash hash = hash(texture);
+
+        synchronized (this) {
+            markOutdated(userId);
+            store(userId, texture, hash);
+        }
+    }
+
+    /**
+     * Remove the cached texture of the given user, if any.
+     *
+     * @param userId The user ID of the user.
+     */
+    public synchronized void remove(int userId) {
+        markOutdated(userId);
+        discard(userId);
+    }
+
+    /**
+     * Remove all cached textures.
+     */
+    public synchronized void clear() {
+        for (Load load: loadsByUser.values()) {
+            load.isOutdated = true;
+        }
+
+        hashesByUser.clear();
+        contentByHash.clear();
+        size = 0;
+    }
+
+    /**
+     * Get the total size in bytes of the cached textures.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Get the number of requests which were answered from the cache.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Get the number of requests for textures which weren't cached.
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    // Must be called while synchronized on this TextureCache.
+    private void store(int userId, byte[] texture, ContentHash hash) {
+        if (hash.equals(hashesByUser.get(userId))) {
+            return;
+        }
+
+        discard(userId);
+
+        if (texture.length > maxSize) {
+            // The texture wouldn't fit even if everything else were evicted.
+            return;
+        }
+
+        Content content = contentByHash.get(hash);
+        if (content == null) {
+            content = new Content(copyOffHeap(texture));
+            contentByHash.put(hash, content);
+            size += texture.length;
+        }
+
+        content.userCount++;
+        hashesByUser.put(userId, hash);
+
+        evict();
+    }
+
+    // Must be called while synchronized on this TextureCache.
+    private void discard(int userId) {
+        ContentHash hash = hashesByUser.remove(userId);
+        if (hash != null) {
+            release(hash);
+        }
+    }
+
+    // Must be called while synchronized on this TextureCache.
+    private void markOutdated(int userId) {
+        Load load = loadsByUser.get(userId);
+        if (load != null) {
+            load.isOutdated = true;
+        }
+    }
+
+    // End a load of the texture of the given user, and return whether the
+    // loaded texture may be outdated. Must be called while synchronized on
+    // this TextureCache.
+    private boolean finishLoad(int userId) {
+        Load load = loadsByUser.get(userId);
+        boolean isOutdated = load.isOutdated;
+        if (--load.count == 0) {
+            loadsByUser.remove(userId);
+        }
+        return isOutdated;
+    }
+
+    // Must be called while synchronized on this TextureCache.
+    private void evict() {
+        Iterator<ContentHash> hashes = hashesByUser.values().iterator();
+
+        while (size > maxSize && hashes.hasNext()) {
+            ContentHash hash = hashes.next();
+            hashes.remove();
+            release(hash);
+        }
+    }
+
+    // Must be called while synchronized on this TextureCache.
+    private void release(ContentHash hash) {
+        Content content = contentByHash.get(hash);
+        if (--content.userCount == 0) {
+            // The direct buffer is freed once it is no longer referenced.
+            contentByHash.remove(hash);
+            size -= content.buffer.capacity();
+        }
+    }
+
+    private static ByteBuffer copyOffHeap(byte[] texture) {
+        if (texture.length == 0) {
+            return EMPTY_TEXTURE;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(texture.length);
+        buffer.put(texture);
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    private static ContentHash hash(byte[] texture) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return new ContentHash(ByteBuffer.wrap(digest.digest(texture)));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+}
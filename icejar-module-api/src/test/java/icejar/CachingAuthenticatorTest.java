@@ -0,0 +1,142 @@
+package icejar;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.zeroc.Ice.Current;
+import MumbleServer.*;
+
+/**
+ * Checks that {@link CachingAuthenticator} shares a lookup between concurrent
+ * requests, caches results which don't identify a user for their own time,
+ * and doesn't cache lookups which throw.
+ */
+final class CachingAuthenticatorTest {
+
+    public static void main(final String... args) throws Exception {
+        final var authenticator = new CountingAuthenticator();
+
+        // A second request for the same name waits for the first one's
+        // lookup instead of starting its own.
+        final var first = CompletableFuture.supplyAsync(() -> authenticator.nameToId("slow", null));
+        authenticator.awaitSlowLookup();
+        final var second = CompletableFuture.supplyAsync(() -> authenticator.nameToId("slow", null));
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (authenticator.getHitCount() == 0) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new AssertionError("Expected the second request to share the lookup");
+            }
+            Thread.sleep(10);
+        }
+        authenticator.releaseSlowLookup();
+        check(first.get(10L, TimeUnit.SECONDS) == 1 && second.get(10L, TimeUnit.SECONDS) == 1,
+                "both requests get the looked up ID");
+        check(authenticator.lookups("slow") == 1, "the name was looked up once");
+
+        // A user's ID is cached until it is invalidated.
+        authenticator.nameToId("slow", null);
+        check(authenticator.lookups("slow") == 1, "the cached ID is used");
+        authenticator.invalidate("slow");
+        authenticator.nameToId("slow", null);
+        check(authenticator.lookups("slow") == 2, "the name is looked up again once invalidated");
+
+        // Unknown names are only cached for the negative TTL, which is 0
+        // here.
+        check(authenticator.nameToId("unknown", null) == -2, "the name is unknown");
+        check(authenticator.nameToId("unknown", null) == -2, "the name is still unknown");
+        check(authenticator.lookups("unknown") == 2, "the unknown name is looked up each time");
+
+        // A lookup which throws isn't cached.
+        try {
+            authenticator.nameToId("broken", null);
+            throw new AssertionError("Expected the first lookup to throw");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        check(authenticator.nameToId("broken", null) == 3, "the failed lookup is repeated");
+        check(authenticator.lookups("broken") == 2, "the name was looked up again");
+
+        System.out.println("CachingAuthenticatorTest passed");
+    }
+
+    private static void check(final boolean condition, final String expectation) {
+        if (!condition) {
+            throw new AssertionError("Expected that " + expectation);
+        }
+    }
+
+    // Counts the lookups of each name. The lookup of "slow" is held up until
+    // it is released, and the first lookup of "broken" throws.
+    private static final class CountingAuthenticator extends CachingAuthenticator {
+        private final Map<String, AtomicInteger> lookups = new ConcurrentHashMap<>();
+        private final CountDownLatch slowStarted = new CountDownLatch(1);
+        private final CountDownLatch slowReleased = new CountDownLatch(1);
+
+        CountingAuthenticator() {
+            super(1, 0, TimeUnit.MINUTES);
+        }
+
+        int lookups(final String name) {
+            return lookups.getOrDefault(name, new AtomicInteger()).get();
+        }
+
+        void awaitSlowLookup() throws InterruptedException {
+            if (!slowStarted.await(10L, TimeUnit.SECONDS)) {
+                throw new AssertionError("Expected the lookup to start");
+            }
+        }
+
+        void releaseSlowLookup() {
+            slowReleased.countDown();
+        }
+
+        @Override
+        protected int lookupNameToId(final String name) {
+            final int count = lookups.computeIfAbsent(name, n -> new AtomicInteger()).incrementAndGet();
+            switch (name) {
+                case "slow":
+                    slowStarted.countDown();
+                    try {
+                        slowReleased.await(10L, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return 1;
+                case "broken":
+                    if (count == 1) {
+                        throw new IllegalStateException("The database is unavailable");
+                    }
+                    return 3;
+                default:
+                    return -2;
+            }
+        }
+
+        @Override
+        protected String lookupIdToName(final int id) {
+            return "";
+        }
+
+        @Override
+        protected GetInfoResult lookupInfo(final int id) {
+            return new GetInfoResult();
+        }
+
+        @Override
+        public AuthenticateResult authenticate(
+                final String name, final String pw, final byte[][] certificates,
+                final String certhash, final boolean certstrong, final Current current)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public byte[] idToTexture(final int id, final Current current) {
+            return new byte[0];
+        }
+    }
+}
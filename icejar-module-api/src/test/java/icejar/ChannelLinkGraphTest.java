@@ -0,0 +1,57 @@
+package icejar;
+
+import java.util.Map;
+import java.util.Set;
+
+import MumbleServer.Channel;
+
+/**
+ * Checks that {@link ChannelLinkGraph} follows links in both directions and
+ * through other channels, and that changes to links are reflected by later
+ * lookups.
+ */
+final class ChannelLinkGraphTest {
+
+    public static void main(final String... args) {
+        final var graph = new ChannelLinkGraph();
+
+        // Only channel 1 states its link to 2, and only channel 3 states its
+        // link to 2, but all three are linked.
+        graph.putChannels(Map.of(
+                1, channel(1, 2),
+                2, channel(2),
+                3, channel(3, 2),
+                4, channel(4)));
+
+        check(graph.getLinkedChannels(1), Set.of(1, 2, 3));
+        check(graph.getLinkedChannels(3), Set.of(1, 2, 3));
+        check(graph.getLinkedChannels(4), Set.of(4));
+        check(graph.getLinkedChannels(5), null);
+
+        graph.putChannel(channel(3));
+        check(graph.getLinkedChannels(1), Set.of(1, 2));
+        check(graph.getLinkedChannels(3), Set.of(3));
+
+        graph.putChannel(channel(4, 1));
+        check(graph.getLinkedChannels(2), Set.of(1, 2, 4));
+
+        graph.removeChannel(2);
+        check(graph.getLinkedChannels(1), Set.of(1, 4));
+        check(graph.getLinkedChannels(2), null);
+
+        System.out.println("ChannelLinkGraphTest passed");
+    }
+
+    private static Channel channel(final int id, final int... links) {
+        final var channel = new Channel();
+        channel.id = id;
+        channel.links = links;
+        return channel;
+    }
+
+    private static void check(final Set<Integer> actual, final Set<Integer> expected) {
+        if (expected == null ? actual != null : !expected.equals(actual)) {
+            throw new AssertionError("Expected " + expected + ", but got " + actual);
+        }
+    }
+}
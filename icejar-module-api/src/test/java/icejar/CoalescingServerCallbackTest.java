@@ -0,0 +1,148 @@
+package icejar;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.zeroc.Ice.Current;
+import MumbleServer.*;
+
+/**
+ * Checks that {@link CoalescingServerCallback} collapses a burst of state
+ * changes of a session into the latest one, and that other calls concerning
+ * the session are still seen in the order in which they arrived.
+ */
+final class CoalescingServerCallbackTest {
+    private static final long WINDOW_MILLIS = 200;
+
+    public static void main(final String... args) throws InterruptedException {
+        final ExecutorService pool = Executors.newFixedThreadPool(4);
+        final var recorder = new RecordingCallback();
+        final var callback = new CoalescingServerCallback(
+                recorder, new KeyedSerialExecutor(pool), true,
+                TimeUnit.MILLISECONDS.toNanos(WINDOW_MILLIS));
+
+        // The text message and the disconnection each close the slot which
+        // holds the state changes before them.
+        callback.userStateChanged(user(1, "a"), null);
+        callback.userStateChanged(user(1, "b"), null);
+        callback.userTextMessage(user(1, "b"), new TextMessage(), null);
+        callback.userStateChanged(user(1, "c"), null);
+        callback.userDisconnected(user(1, "c"), null);
+
+        // These are only handled once the window has passed.
+        callback.userStateChanged(user(2, "x"), null);
+        callback.userStateChanged(user(2, "y"), null);
+
+        // A state change which arrives while an earlier call is still waiting
+        // in the session's lane is handled after that call.
+        callback.userConnected(user(3, "a"), null);
+        recorder.awaitConnected();
+        callback.userTextMessage(user(3, "a"), new TextMessage(), null);
+        callback.userStateChanged(user(3, "b"), null);
+        recorder.releaseConnected();
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (recorder.get(2).isEmpty() || recorder.get(3).size() < 3) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new AssertionError("Expected the held back state change to be handled");
+            }
+            Thread.sleep(10);
+        }
+        // Give any further (wrong) calls a chance to arrive.
+        Thread.sleep(2 * WINDOW_MILLIS);
+        pool.shutdown();
+
+        check(recorder.get(1), List.of("state b", "text b", "state c", "disconnected c"));
+        check(recorder.get(2), List.of("state y"));
+        check(recorder.get(3), List.of("connected a", "text a", "state b"));
+
+        System.out.println("CoalescingServerCallbackTest passed");
+    }
+
+    private static User user(final int session, final String name) {
+        final var user = new User();
+        user.session = session;
+        user.name = name;
+        return user;
+    }
+
+    private static void check(final List<String> actual, final List<String> expected) {
+        if (!actual.equals(expected)) {
+            throw new AssertionError("Expected calls " + expected + ", but got " + actual);
+        }
+    }
+
+    // Records the calls concerning each session. The first connection is
+    // held up until it is released.
+    private static final class RecordingCallback implements ServerCallback {
+        private final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+        private final CountDownLatch connected = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        void awaitConnected() throws InterruptedException {
+            if (!connected.await(10L, TimeUnit.SECONDS)) {
+                throw new AssertionError("Expected the connection to be handled");
+            }
+        }
+
+        void releaseConnected() {
+            released.countDown();
+        }
+
+        List<String> get(final int session) {
+            final List<String> sessionCalls = new ArrayList<>();
+            synchronized (calls) {
+                for (final String call: calls) {
+                    if (call.startsWith(session + " ")) {
+                        sessionCalls.add(call.substring(call.indexOf(' ') + 1));
+                    }
+                }
+            }
+            return sessionCalls;
+        }
+
+        private void record(final User state, final String call) {
+            calls.add(state.session + " " + call + " " + state.name);
+        }
+
+        @Override
+        public void userConnected(final User state, final Current current) {
+            record(state, "connected");
+            connected.countDown();
+            try {
+                released.await(10L, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void userDisconnected(final User state, final Current current) {
+            record(state, "disconnected");
+        }
+
+        @Override
+        public void userStateChanged(final User state, final Current current) {
+            record(state, "state");
+        }
+
+        @Override
+        public void userTextMessage(final User state, final TextMessage message, final Current current) {
+            record(state, "text");
+        }
+
+        @Override
+        public void channelCreated(final Channel state, final Current current) {}
+
+        @Override
+        public void channelRemoved(final Channel state, final Current current) {}
+
+        @Override
+        public void channelStateChanged(final Channel state, final Current current) {}
+    }
+}
@@ -0,0 +1,126 @@
+package icejar;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import MumbleServer.*;
+
+/**
+ * A virtual server for checks, whose requests complete only once the check
+ * completes them. Only the requests which the checks make are supported.
+ */
+final class FakeServer {
+    private final ServerPrx proxy;
+
+    private final List<CompletableFuture<Map<Integer, User>>> userRequests = new ArrayList<>();
+    private final List<CompletableFuture<Map<Integer, Channel>>> channelRequests = new ArrayList<>();
+    private final List<CompletableFuture<Server.GetACLResult>> aclRequests = new ArrayList<>();
+
+    // Thrown by the next `getACLAsync` call instead of making a request.
+    private RuntimeException aclFailure;
+
+    FakeServer() {
+        proxy = (ServerPrx) Proxy.newProxyInstance(
+                ServerPrx.class.getClassLoader(),
+                new Class<?>[] { ServerPrx.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getUsersAsync":
+                            return request(userRequests);
+                        case "getChannelsAsync":
+                            return request(channelRequests);
+                        case "getACLAsync":
+                            synchronized (this) {
+                                if (aclFailure != null) {
+                                    RuntimeException failure = aclFailure;
+                                    aclFailure = null;
+                                    throw failure;
+                                }
+                            }
+                            return request(aclRequests);
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "toString":
+                            return "FakeServer";
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    ServerPrx getProxy() {
+        return proxy;
+    }
+
+    // Complete the request for the users and channels made by the load with
+    // the given index, counting from 0.
+    void completeLoad(int load, Map<Integer, User> users, Map<Integer, Channel> channels) {
+        get(userRequests, load).complete(users);
+        get(channelRequests, load).complete(channels);
+    }
+
+    // Complete the `getACL` request with the given index, counting from 0.
+    void completeACL(int request, Group... groups) {
+        Server.GetACLResult result = new Server.GetACLResult();
+        result.acls = new ACL[0];
+        result.groups = groups;
+        result.inherit = true;
+        get(aclRequests, request).complete(result);
+    }
+
+    void failACL(int request, RuntimeException failure) {
+        get(aclRequests, request).completeExceptionally(failure);
+    }
+
+    synchronized void failNextACL(RuntimeException failure) {
+        aclFailure = failure;
+    }
+
+    synchronized int getACLRequestCount() {
+        return aclRequests.size();
+    }
+
+    private synchronized <T> CompletableFuture<T> request(List<CompletableFuture<T>> requests) {
+        CompletableFuture<T> request = new CompletableFuture<>();
+        requests.add(request);
+        return request;
+    }
+
+    private synchronized <T> CompletableFuture<T> get(List<CompletableFuture<T>> requests, int index) {
+        return requests.get(index);
+    }
+
+    static User user(int session, int userid, int channel) {
+        User user = new User();
+        user.session = session;
+        user.userid = userid;
+        user.channel = channel;
+        user.name = "user" + session;
+        return user;
+    }
+
+    static Channel channel(int id, int parent) {
+        Channel channel = new Channel();
+        channel.id = id;
+        channel.parent = parent;
+        channel.name = "channel" + id;
+        channel.links = new int[0];
+        return channel;
+    }
+
+    static Group group(String name, int... members) {
+        Group group = new Group();
+        group.name = name;
+        group.inherit = true;
+        group.inheritable = true;
+        group.add = members;
+        group.remove = new int[0];
+        group.members = members;
+        return group;
+    }
+}
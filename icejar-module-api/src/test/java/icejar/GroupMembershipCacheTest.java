@@ -0,0 +1,139 @@
+package icejar;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import MumbleServer.*;
+
+import static icejar.FakeServer.channel;
+import static icejar.FakeServer.group;
+
+/**
+ * Checks that {@link GroupMembershipCache} shares a request between
+ * concurrent lookups of a channel, doesn't cache failed requests, expires
+ * groups after its TTL, and that the cache Icejar keeps discards the groups
+ * of a changed channel and of the channels below it.
+ */
+final class GroupMembershipCacheTest {
+
+    public static void main(final String... args) {
+        sharedRequests();
+        failedRequests();
+        expiry();
+        subchannelInvalidation();
+
+        System.out.println("GroupMembershipCacheTest passed");
+    }
+
+    private static void sharedRequests() {
+        final var server = new FakeServer();
+        final var cache = GroupMembershipCache.create(server.getProxy(), 1, TimeUnit.MINUTES);
+
+        final var admins = cache.getGroupMembersAsync(5, "admin");
+        final var moderators = cache.getGroupMembersAsync(5, "moderator");
+        check(server.getACLRequestCount() == 1, "both lookups share a request");
+
+        // A group which is listed twice has the members of both entries.
+        server.completeACL(0, group("admin", 1, 2), group("admin", 3));
+        check(admins.join().equals(Set.of(1, 2, 3)), "the members of the group are merged");
+        check(moderators.join().isEmpty(), "an unknown group has no members");
+
+        cache.getGroupMembersAsync(5, "admin").join();
+        check(server.getACLRequestCount() == 1, "the cached groups are used");
+        check(cache.getHitCount() == 2 && cache.getMissCount() == 1, "hits and misses are counted");
+    }
+
+    private static void failedRequests() {
+        final var server = new FakeServer();
+        final var cache = GroupMembershipCache.create(server.getProxy(), 1, TimeUnit.MINUTES);
+
+        final var failed = cache.getGroupMembersAsync(5, "admin");
+        server.failACL(0, new IllegalStateException("The request failed"));
+        checkFailed(failed);
+
+        final var repeated = cache.getGroupMembersAsync(5, "admin");
+        check(server.getACLRequestCount() == 2, "the failed request is repeated");
+        server.completeACL(1, group("admin", 1));
+        check(repeated.join().equals(Set.of(1)), "the repeated request succeeds");
+
+        // A request which can't even be sent fails the lookup, rather than
+        // throwing from it.
+        server.failNextACL(new IllegalStateException("The communicator was destroyed"));
+        checkFailed(cache.getGroupMembersAsync(6, "admin"));
+        cache.getGroupMembersAsync(6, "admin");
+        check(server.getACLRequestCount() == 3, "the request is made by the next lookup");
+    }
+
+    private static void expiry() {
+        final var server = new FakeServer();
+        final var cache = GroupMembershipCache.create(server.getProxy(), 0, TimeUnit.MILLISECONDS);
+
+        final var first = cache.getGroupMembersAsync(5, "admin");
+        server.completeACL(0, group("admin", 1));
+        first.join();
+        cache.getGroupMembersAsync(5, "admin");
+        check(server.getACLRequestCount() == 2, "expired groups are requested again");
+    }
+
+    private static void subchannelInvalidation() {
+        final var server = new FakeServer();
+        final var state = new ServerState(server.getProxy());
+        final ServerCallback updater = state.getUpdater();
+
+        // Channels 1 and 3 are below the root channel, and 2 is below 1.
+        final var loaded = state.load();
+        server.completeLoad(0, Map.of(), Map.of(
+                    0, channel(0, -1), 1, channel(1, 0),
+                    2, channel(2, 1), 3, channel(3, 0)));
+        loaded.join();
+        final var cache = state.getGroupMembership();
+
+        lookUpAll(server, cache);
+        check(server.getACLRequestCount() == 4, "each channel's groups are requested");
+
+        updater.channelStateChanged(channel(1, 0), null);
+        lookUpAll(server, cache);
+        check(server.getACLRequestCount() == 6, "the changed channel and its subchannel are requested again");
+
+        // Once channel 2 is moved below channel 3, it is affected by changes
+        // to channel 3 instead of channel 1.
+        updater.channelStateChanged(channel(2, 3), null);
+        lookUpAll(server, cache);
+        check(server.getACLRequestCount() == 7, "the moved channel is requested again");
+
+        updater.channelStateChanged(channel(3, 0), null);
+        lookUpAll(server, cache);
+        check(server.getACLRequestCount() == 9, "the new parent and the moved channel are requested again");
+    }
+
+    // Look up the groups of every channel, completing the requests which
+    // this makes.
+    private static void lookUpAll(final FakeServer server, final GroupMembershipCache cache) {
+        for (int channel = 0; channel < 4; channel++) {
+            final int previousRequests = server.getACLRequestCount();
+            final var lookup = cache.getGroupMembersAsync(channel, "admin");
+            if (server.getACLRequestCount() > previousRequests) {
+                server.completeACL(previousRequests, group("admin", channel));
+            }
+            check(lookup.join().equals(Set.of(channel)), "the groups of channel " + channel + " are found");
+        }
+    }
+
+    private static void checkFailed(final CompletableFuture<?> lookup) {
+        try {
+            lookup.join();
+        } catch (CompletionException e) {
+            return;
+        }
+        throw new AssertionError("Expected the lookup to fail");
+    }
+
+    private static void check(final boolean condition, final String expectation) {
+        if (!condition) {
+            throw new AssertionError("Expected that " + expectation);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package icejar;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that {@link KeyedSerialExecutor} runs the tasks of each key one at a
+ * time and in the order in which they were submitted, even though tasks of
+ * different keys share a pool of several threads.
+ */
+final class KeyedSerialExecutorTest {
+    private static final int KEYS = 4;
+    private static final int TASKS_PER_KEY = 1000;
+
+    public static void main(final String... args) throws InterruptedException {
+        final var pool = Executors.newFixedThreadPool(4);
+        final var executor = new KeyedSerialExecutor(pool);
+
+        final List<List<Integer>> order = new ArrayList<>();
+        for (int key = 0; key < KEYS; ++key) {
+            order.add(Collections.synchronizedList(new ArrayList<>()));
+        }
+        final var done = new CountDownLatch(KEYS * TASKS_PER_KEY);
+
+        for (int i = 0; i < TASKS_PER_KEY; ++i) {
+            for (int key = 0; key < KEYS; ++key) {
+                final var lane = order.get(key);
+                final var task = i;
+                executor.execute(key, () -> {
+                    lane.add(task);
+                    done.countDown();
+                });
+            }
+        }
+
+        if (!done.await(10L, TimeUnit.SECONDS)) {
+            throw new AssertionError("Expected every task to run");
+        }
+        pool.shutdown();
+
+        for (int key = 0; key < KEYS; ++key) {
+            final var lane = order.get(key);
+            for (int i = 0; i < TASKS_PER_KEY; ++i) {
+                if (lane.get(i) != i) {
+                    throw new AssertionError(
+                            "Expected the tasks of key " + key +
+                            " to run in order, but got " + lane);
+                }
+            }
+        }
+
+        System.out.println("KeyedSerialExecutorTest passed");
+    }
+}
@@ -0,0 +1,62 @@
+package icejar;
+
+import java.util.Map;
+import java.util.Set;
+
+import MumbleServer.*;
+
+import static icejar.FakeServer.channel;
+import static icejar.FakeServer.user;
+
+/**
+ * Checks that {@link ServerState} applies the changes which arrive while it
+ * is being loaded on top of the loaded snapshot, and that only the latest of
+ * several overlapping loads is used.
+ */
+final class ServerStateTest {
+
+    public static void main(final String... args) {
+        final var server = new FakeServer();
+        final ServerPrx proxy = server.getProxy();
+        final var state = new ServerState(proxy);
+        ServerState.register(proxy, state);
+        final ServerCallback updater = state.getUpdater();
+
+        // Changes which arrive during the load are replayed once the
+        // snapshot has been loaded.
+        final var firstLoad = state.load();
+        check(ServerState.of(proxy) == null, "the mirror isn't available while it is loaded");
+        updater.userConnected(user(2, -1, 0), null);
+        updater.channelCreated(channel(1, 0), null);
+        updater.userStateChanged(user(1, 7, 1), null);
+
+        server.completeLoad(0, Map.of(1, user(1, 7, 0)), Map.of(0, channel(0, -1)));
+        firstLoad.join();
+        check(ServerState.of(proxy) == state, "the mirror is available once it is loaded");
+        check(state.getUsers().keySet().equals(Set.of(1, 2)), "the connected user was added");
+        check(state.getUsersInChannel(1).keySet().equals(Set.of(1)), "the moved user is in its new channel");
+        check(state.getUsersInChannel(0).keySet().equals(Set.of(2)), "the moved user left its old channel");
+        check(state.getRegisteredUser(7).channel == 1, "the registered user was updated");
+        check(state.getSubchannels(0).equals(Set.of(0, 1)), "the created channel is a subchannel");
+
+        // When the virtual server restarts twice in a row, the snapshot of
+        // the first load may arrive last, but is ignored.
+        final var olderLoad = state.load();
+        final var newerLoad = state.load();
+        check(ServerState.of(proxy) == null, "the mirror isn't available while it is reloaded");
+        server.completeLoad(2, Map.of(3, user(3, -1, 0)), Map.of(0, channel(0, -1)));
+        server.completeLoad(1, Map.of(4, user(4, -1, 0)), Map.of(0, channel(0, -1)));
+        newerLoad.join();
+        olderLoad.join();
+        check(state.getUsers().keySet().equals(Set.of(3)), "only the newer snapshot is used");
+        check(state.getSubchannels(0).equals(Set.of(0)), "channels which are gone were removed");
+
+        System.out.println("ServerStateTest passed");
+    }
+
+    private static void check(final boolean condition, final String expectation) {
+        if (!condition) {
+            throw new AssertionError("Expected that " + expectation);
+        }
+    }
+}
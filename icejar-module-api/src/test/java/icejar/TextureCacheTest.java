@@ -0,0 +1,90 @@
+package icejar;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Checks that {@link TextureCache} caches loaded textures, shares and evicts
+ * them by size, and doesn't let a load replace a texture which was put or
+ * removed while the load was running.
+ */
+final class TextureCacheTest {
+
+    public static void main(final String... args) {
+        final var cache = TextureCache.create(8);
+
+        // A miss loads and caches the texture.
+        check(cache.get(1, id -> bytes(1, 2, 3)), bytes(1, 2, 3));
+        check(cache.getBuffer(1), bytes(1, 2, 3));
+
+        // Users with the same texture share its buffer.
+        cache.put(2, bytes(1, 2, 3));
+        checkSize(cache, 3);
+
+        // The least recently used users are evicted once the total size
+        // exceeds the maximum.
+        cache.getBuffer(1);
+        cache.put(3, bytes(4, 5, 6, 7, 8, 9));
+        check(cache.getBuffer(2), null);
+        check(cache.getBuffer(1), null);
+        check(cache.getBuffer(3), bytes(4, 5, 6, 7, 8, 9));
+        checkSize(cache, 6);
+
+        // A texture which is put while the old one is being loaded is kept.
+        cache.clear();
+        final byte[] loaded = cache.get(4, id -> {
+            cache.put(id, bytes(2));
+            return bytes(1);
+        });
+        check(loaded, bytes(1));
+        check(cache.getBuffer(4), bytes(2));
+
+        // A texture which is removed while it is being loaded isn't cached.
+        cache.get(5, id -> {
+            cache.remove(id);
+            return bytes(1);
+        });
+        check(cache.getBuffer(5), null);
+
+        // Once nothing is loading, a miss caches the loaded texture again.
+        cache.get(5, id -> bytes(3));
+        check(cache.getBuffer(5), bytes(3));
+
+        System.out.println("TextureCacheTest passed");
+    }
+
+    private static byte[] bytes(final int... values) {
+        final var bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    private static void check(final ByteBuffer actual, final byte[] expected) {
+        if (actual == null || expected == null) {
+            if ((actual == null) != (expected == null)) {
+                throw new AssertionError(
+                        "Expected " + Arrays.toString(expected) + ", but got " + actual);
+            }
+            return;
+        }
+
+        final var texture = new byte[actual.remaining()];
+        actual.get(texture);
+        check(texture, expected);
+    }
+
+    private static void check(final byte[] actual, final byte[] expected) {
+        if (!Arrays.equals(actual, expected)) {
+            throw new AssertionError(
+                    "Expected " + Arrays.toString(expected) + ", but got " + Arrays.toString(actual));
+        }
+    }
+
+    private static void checkSize(final TextureCache cache, final long expected) {
+        if (cache.getSize() != expected) {
+            throw new AssertionError("Expected size " + expected + ", but got " + cache.getSize());
+        }
+    }
+}